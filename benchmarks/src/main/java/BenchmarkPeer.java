@@ -0,0 +1,21 @@
+import java.io.File;
+
+// Sets up a peerProcess the way main() does, from parameters instead of Common.cfg and
+// PeerInfo.cfg. Files are created relative to the working directory like for a peer.
+public class BenchmarkPeer {
+    public static final int NO_OF_NEIGHBORS = 4;
+
+    public static peerProcess Create(int peer_id, int no_of_pieces, int piece_size, boolean has_file) {
+        new File("logs").mkdirs();
+        peerProcess peer = new peerProcess(peer_id);
+        peer.config_params.put("FileName", "bench.dat");
+        peer.config_params.put("FileSize", String.valueOf((long) no_of_pieces * piece_size));
+        peer.config_params.put("PieceSize", String.valueOf(piece_size));
+        peer.config_params.put("BlockSize", String.valueOf(piece_size));
+        peer.host_details = new PeerDetails(peer_id + " localhost 6008 " + (has_file ? 1 : 0));
+        for (int i = 1; i <= NO_OF_NEIGHBORS; i++)
+            peer.neighbors_list.put(peer_id + i, new PeerDetails((peer_id + i) + " localhost " + (6008 + i) + " 0"));
+        peer.SetBitField();
+        return peer;
+    }
+}
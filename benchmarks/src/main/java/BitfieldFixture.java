@@ -0,0 +1,63 @@
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class BitfieldFixture implements benchmarks.Bitfield {
+    private PieceBitfield random_bitfield; // Every piece with probability 1/2
+    private byte[] encoded;                // BITFIELD payload of random_bitfield
+    private PeerDetails host, neighbor;   // Neighbor has the file, the host misses only the last piece
+    private int no_of_pieces;
+
+    public void Setup(int no_of_pieces) {
+        this.no_of_pieces = no_of_pieces;
+        Random random = new Random(42);
+        random_bitfield = new PieceBitfield(no_of_pieces);
+        for (int i = 0; i < no_of_pieces; i++) {
+            if (random.nextBoolean())
+                random_bitfield.Set(i);
+        }
+        encoded  = random_bitfield.ToByteArray();
+        host     = new PeerDetails("1001 localhost 6008 0");
+        neighbor = new PeerDetails("1002 localhost 6009 1");
+        host.bitfield_piece_index     = new PieceBitfield(no_of_pieces);
+        neighbor.bitfield_piece_index = new PieceBitfield(no_of_pieces);
+        for (int i = 0; i < no_of_pieces; i++) {
+            if (i != no_of_pieces - 1)
+                host.bitfield_piece_index.Set(i);
+            neighbor.bitfield_piece_index.Set(i);
+        }
+    }
+
+    public boolean Get(int index) {
+        return random_bitfield.Get(index);
+    }
+
+    public boolean SetAndClear(int index) {
+        boolean changed = random_bitfield.Set(index);
+        if (changed)
+            random_bitfield.Clear(index);
+        return changed;
+    }
+
+    public int IterateSetBits() {
+        int sum = 0;
+        for (int i = random_bitfield.NextSetBit(0); i >= 0; i = random_bitfield.NextSetBit(i + 1))
+            sum += i;
+        return sum;
+    }
+
+    public byte[] ToByteArray() {
+        return random_bitfield.ToByteArray();
+    }
+
+    public PieceBitfield FromBytes() {
+        return PieceBitfield.FromBytes(ByteBuffer.wrap(encoded), no_of_pieces);
+    }
+
+    public boolean CheckInterest() {
+        return Utils.CheckInterest(host, neighbor);
+    }
+
+    public boolean CheckAllPiecesReceived() {
+        return Utils.CheckAllPiecesReceived(host.bitfield_piece_index);
+    }
+}
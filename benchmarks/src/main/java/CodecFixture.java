@@ -0,0 +1,79 @@
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+public class CodecFixture implements benchmarks.Codec {
+    private final ByteBuffer out;
+    private final Block block;
+    private final Message have_message;
+    private final FrameDecoder decoder;
+    private final ReadableByteChannel stream; // Returns the same read of frames every time
+
+    public CodecFixture() {
+        out          = ByteBuffer.allocateDirect(SelectorConnection.MESSAGE_BUFFER_SIZE);
+        block        = new Block(42, 16384, 16384);
+        have_message = new Message(MessageType.HAVE, ByteBuffer.allocate(4).putInt(42).array());
+        // Large enough for the whole read, like the receive buffer of a connection with a large bitfield
+        decoder      = new FrameDecoder(64 * 1024);
+
+        // 32 HAVE, 32 REQUEST and one PIECE, roughly what a busy connection receives in one read
+        ByteBuffer frames = ByteBuffer.allocateDirect(32 * Message.FrameSize(4) + 32 * Message.FrameSize(12)
+                + Message.FrameSize(block.length + 8));
+        for (int i = 0; i < 32; i++) {
+            Message.Encode(frames, MessageType.HAVE, i);
+            Message.Encode(frames, MessageType.REQUEST, new Block(i, 0, 16384));
+        }
+        Message.EncodePieceHeader(frames, block);
+        frames.position(frames.capacity()).flip();
+        stream = new ReadableByteChannel() {
+            public int read(ByteBuffer dst) {
+                dst.put(frames.duplicate());
+                return frames.limit();
+            }
+
+            public boolean isOpen() {
+                return true;
+            }
+
+            public void close() {
+            }
+        };
+    }
+
+    public int EncodeControl() {
+        out.clear();
+        Message.Encode(out, MessageType.UNCHOKE);
+        return out.position();
+    }
+
+    public int EncodeHave(int index) {
+        out.clear();
+        Message.Encode(out, MessageType.HAVE, index);
+        return out.position();
+    }
+
+    public int EncodeRequest() {
+        out.clear();
+        Message.Encode(out, MessageType.REQUEST, block);
+        return out.position();
+    }
+
+    public byte[] BuildMessageByteArray() {
+        return have_message.BuildMessageByteArray();
+    }
+
+    public int DecodeFrames() {
+        try {
+            decoder.ReadFrom(stream);
+            int no_of_frames = 0;
+            Message frame;
+            while ((frame = decoder.NextFrame()) != null) {
+                // Read the fields the handler reads
+                if (frame.GetMessageType() != MessageType.UNKNOWN && frame.GetPayloadInt(0) >= 0)
+                    no_of_frames++;
+            }
+            return no_of_frames;
+        } catch (java.io.IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+public class LoggerFixture implements benchmarks.Log {
+    private Logger logger;
+    private PrintStream console;
+
+    public void Setup() {
+        new File("logs").mkdirs();
+        // The writer echoes every line to the console, which would flood the benchmark output
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        logger = new Logger("bench");
+        logger.SetLevel(Logger.Level.INFO);
+    }
+
+    public void Log(int index) {
+        logger.log("has downloaded the piece " + index + " from 1002. Now the number of pieces it has is " + index);
+    }
+
+    public void LogFiltered(int index) {
+        logger.log(Logger.Level.DEBUG, "has downloaded the piece " + index + " from 1002. Now the number of pieces it has is " + index);
+    }
+
+    public void TearDown() {
+        logger.Close();
+        System.setOut(console);
+    }
+}
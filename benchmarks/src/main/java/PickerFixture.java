@@ -0,0 +1,58 @@
+import java.util.Random;
+
+public class PickerFixture implements benchmarks.Picker {
+    private peerProcess host_peer;
+    private PeerDetails neighbor;
+    private int no_of_pieces;
+    private int[] received;        // Random half of the pieces, received before picking starts
+
+    // Every neighbor has a random half of the pieces and the host has received another random half
+    public void Reset(int no_of_pieces, String strategy) {
+        if (host_peer == null || this.no_of_pieces != no_of_pieces) {
+            this.no_of_pieces = no_of_pieces;
+            host_peer = BenchmarkPeer.Create(1001, no_of_pieces, 16384, false);
+            Random random = new Random(42);
+            for (PeerDetails peer : host_peer.neighbors_list.values()) {
+                peer.bitfield_piece_index = new PieceBitfield(no_of_pieces);
+                for (int i = 0; i < no_of_pieces; i++) {
+                    if (random.nextBoolean())
+                        peer.bitfield_piece_index.Set(i);
+                }
+            }
+            neighbor = host_peer.neighbors_list.get(1002);
+            received = new int[no_of_pieces / 2];
+            int[] pieces = new int[no_of_pieces];
+            for (int i = 0; i < no_of_pieces; i++)
+                pieces[i] = i;
+            for (int i = no_of_pieces - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int piece = pieces[i];
+                pieces[i] = pieces[j];
+                pieces[j] = piece;
+            }
+            System.arraycopy(pieces, 0, received, 0, received.length);
+        }
+        host_peer.config_params.put("PiecePicker", strategy);
+        host_peer.SetBitField();
+        host_peer.piece_picker = PiecePicker.Create(host_peer);
+        for (PeerDetails peer : host_peer.neighbors_list.values())
+            host_peer.piece_picker.AddPeer(peer.bitfield_piece_index);
+        for (int index : received) {
+            host_peer.host_details.bitfield_piece_index.Set(index);
+            host_peer.piece_picker.PieceReceived(index);
+        }
+    }
+
+    public int Pick(int no_of_blocks) {
+        int no_of_picked = 0;
+        Block block;
+        while (no_of_picked < no_of_blocks && (block = Utils.GetInterestBlock(host_peer, neighbor)) != null) {
+            if (host_peer.piece_picker.BlockReceived(block, neighbor.peer_id) == PiecePicker.BlockStatus.LAST_BLOCK) {
+                host_peer.host_details.bitfield_piece_index.Set(block.index);
+                host_peer.piece_picker.PieceReceived(block.index);
+            }
+            no_of_picked++;
+        }
+        return no_of_picked;
+    }
+}
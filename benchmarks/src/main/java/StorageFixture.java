@@ -0,0 +1,59 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class StorageFixture implements benchmarks.Storage {
+    private static final int BLOCK_SIZE = 16384;
+    private peerProcess host_peer;
+    private DiskWriter disk_writer;
+    private ByteBuffer piece;     // Direct like the receive buffer blocks are copied from
+
+    public void Setup(int no_of_pieces, int piece_size) throws IOException {
+        host_peer = BenchmarkPeer.Create(1001, no_of_pieces, piece_size, false);
+        host_peer.file_handler = new FileHandler(host_peer);
+        host_peer.file_handler.OpenFile();
+        disk_writer = new DiskWriter("DiskWriter-bench", host_peer.logger, 1, Long.MAX_VALUE, "close", 5);
+        piece = ByteBuffer.allocateDirect(piece_size);
+        for (int i = 0; i < piece_size; i++)
+            piece.put((byte) i);
+        // Write the whole file once so reads do not hit holes of the preallocated file
+        for (int i = 0; i < no_of_pieces; i++)
+            WritePiece(i);
+    }
+
+    public byte[] GetPiece(int index) throws IOException {
+        return host_peer.file_handler.GetPiece(index);
+    }
+
+    public boolean WriteAndSetPiece(int index) throws IOException {
+        WritePiece(index);
+        // Unmark the piece first, SetPiece only marks and persists a piece once
+        host_peer.host_details.bitfield_piece_index.Clear(index);
+        return host_peer.file_handler.SetPiece(index);
+    }
+
+    // Queue the piece block by block like received blocks, and wait until the DiskWriter wrote it
+    private void WritePiece(int index) throws IOException {
+        int piece_length = host_peer.file_handler.GetPieceLength(index);
+        for (int offset = 0; offset < piece_length; offset += BLOCK_SIZE) {
+            ByteBuffer block = piece.duplicate();
+            block.limit(Math.min(piece_length, offset + BLOCK_SIZE)).position(offset);
+            disk_writer.Write(host_peer.file_handler, index, offset, block);
+        }
+        CountDownLatch written = new CountDownLatch(1);
+        AtomicBoolean failed = new AtomicBoolean(false);
+        disk_writer.WhenWritten(host_peer.file_handler, index, written::countDown, () -> {
+            failed.set(true);
+            written.countDown();
+        });
+        try {
+            written.await();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        if (failed.get())
+            throw new IOException("Piece " + index + " could not be written");
+    }
+}
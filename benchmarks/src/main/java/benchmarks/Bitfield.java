@@ -0,0 +1,20 @@
+package benchmarks;
+
+// PieceBitfield and the bitfield checks of Utils, implemented by BitfieldFixture
+public interface Bitfield {
+    void Setup(int no_of_pieces);
+
+    boolean Get(int index);
+
+    boolean SetAndClear(int index);
+
+    int IterateSetBits();
+
+    byte[] ToByteArray();
+
+    Object FromBytes();
+
+    boolean CheckInterest();
+
+    boolean CheckAllPiecesReceived();
+}
@@ -0,0 +1,72 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BitfieldBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int no_of_pieces;
+
+    private Bitfield bitfield;
+    private int[] indices;   // Random piece indices, a power of 2 of them
+    private int next;
+
+    @Setup
+    public void Setup() {
+        bitfield = Fixtures.Load("BitfieldFixture", Bitfield.class);
+        bitfield.Setup(no_of_pieces);
+        Random random = new Random(42);
+        indices = new int[4096];
+        for (int i = 0; i < indices.length; i++)
+            indices[i] = random.nextInt(no_of_pieces);
+    }
+
+    private int NextIndex() {
+        return indices[next++ & (indices.length - 1)];
+    }
+
+    @Benchmark
+    public boolean Get() {
+        return bitfield.Get(NextIndex());
+    }
+
+    @Benchmark
+    public boolean SetAndClear() {
+        return bitfield.SetAndClear(NextIndex());
+    }
+
+    @Benchmark
+    public int IterateSetBits() {
+        return bitfield.IterateSetBits();
+    }
+
+    @Benchmark
+    public byte[] ToByteArray() {
+        return bitfield.ToByteArray();
+    }
+
+    // Decoding a BITFIELD message
+    @Benchmark
+    public Object FromBytes() {
+        return bitfield.FromBytes();
+    }
+
+    // Worst case, only the last piece is of interest
+    @Benchmark
+    public boolean CheckInterest() {
+        return bitfield.CheckInterest();
+    }
+
+    @Benchmark
+    public boolean CheckAllPiecesReceived() {
+        return bitfield.CheckAllPiecesReceived();
+    }
+}
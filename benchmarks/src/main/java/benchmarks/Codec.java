@@ -0,0 +1,17 @@
+package benchmarks;
+
+// Message encoding and decoding, implemented by CodecFixture
+public interface Codec {
+    // Encode the messages sent on the event loop into a pooled buffer, returns the bytes written
+    int EncodeControl();
+
+    int EncodeHave(int index);
+
+    int EncodeRequest();
+
+    // Heap encoding still used for oversized payloads
+    byte[] BuildMessageByteArray();
+
+    // Decode a read of HAVE, REQUEST and PIECE frames, returns the number of frames
+    int DecodeFrames();
+}
@@ -0,0 +1,47 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    private Codec codec;
+    private int index;
+
+    @Setup
+    public void Setup() {
+        codec = Fixtures.Load("CodecFixture", Codec.class);
+    }
+
+    @Benchmark
+    public int EncodeControl() {
+        return codec.EncodeControl();
+    }
+
+    @Benchmark
+    public int EncodeHave() {
+        return codec.EncodeHave(index++);
+    }
+
+    @Benchmark
+    public int EncodeRequest() {
+        return codec.EncodeRequest();
+    }
+
+    @Benchmark
+    public byte[] BuildMessageByteArray() {
+        return codec.BuildMessageByteArray();
+    }
+
+    // 65 frames per operation
+    @Benchmark
+    public int DecodeFrames() {
+        return codec.DecodeFrames();
+    }
+}
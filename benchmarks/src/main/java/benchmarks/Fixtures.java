@@ -0,0 +1,17 @@
+package benchmarks;
+
+// The peer classes are in the default package, which a JMH benchmark cannot be in and which no
+// other package can import. Each benchmark therefore drives a fixture class of the default package
+// (next to this package) through an interface declared here, the fixture is loaded by name.
+final class Fixtures {
+    private Fixtures() {
+    }
+
+    static <T> T Load(String class_name, Class<T> type) {
+        try {
+            return type.cast(Class.forName(class_name).getDeclaredConstructor().newInstance());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot load benchmark fixture " + class_name, e);
+        }
+    }
+}
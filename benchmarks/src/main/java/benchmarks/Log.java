@@ -0,0 +1,14 @@
+package benchmarks;
+
+// Logger, implemented by LoggerFixture
+public interface Log {
+    void Setup();
+
+    // A log line like the ones written for every received piece
+    void Log(int index);
+
+    // The same line below the configured level
+    void LogFiltered(int index);
+
+    void TearDown();
+}
@@ -0,0 +1,38 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Log measures the sustained rate: once the ring buffer is full the caller waits for the writer
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoggerBenchmark {
+    private Log log;
+    private int index;
+
+    @Setup
+    public void Setup() {
+        log = Fixtures.Load("LoggerFixture", Log.class);
+        log.Setup();
+    }
+
+    @TearDown
+    public void TearDown() {
+        log.TearDown();
+    }
+
+    @Benchmark
+    public void Log() {
+        log.Log(index++);
+    }
+
+    @Benchmark
+    public void LogFiltered() {
+        log.LogFiltered(index++);
+    }
+}
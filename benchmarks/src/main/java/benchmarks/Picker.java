@@ -0,0 +1,10 @@
+package benchmarks;
+
+// Piece picking through Utils.GetInterestBlock, implemented by PickerFixture
+public interface Picker {
+    // A download of no_of_pieces one-block pieces with the given PiecePicker strategy, half done
+    void Reset(int no_of_pieces, String strategy);
+
+    // Request and receive up to no_of_blocks blocks from one neighbor, returns the number picked
+    int Pick(int no_of_blocks);
+}
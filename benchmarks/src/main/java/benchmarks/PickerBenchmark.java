@@ -0,0 +1,42 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Time to pick and receive PICKS blocks from one neighbor, halfway through the download; divide the
+// score by PICKS for the time per block. Picking changes the picker, so every iteration is a single
+// batch of PICKS picks timed as a whole, and the picker is rebuilt between iterations, outside of
+// the measured time. The bytes the GC profiler reports per operation include those of the rebuild.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 100, batchSize = PickerBenchmark.PICKS)
+@Measurement(iterations = 50, batchSize = PickerBenchmark.PICKS)
+@Fork(1)
+public class PickerBenchmark {
+    static final int PICKS = 1000;
+
+    @Param({"10000", "100000", "1000000"})
+    public int no_of_pieces;
+
+    @Param({"rarest", "sequential"})
+    public String strategy;
+
+    private Picker picker;
+
+    @Setup(Level.Trial)
+    public void Setup() {
+        picker = Fixtures.Load("PickerFixture", Picker.class);
+    }
+
+    @Setup(Level.Iteration)
+    public void Reset() {
+        picker.Reset(no_of_pieces, strategy);
+    }
+
+    @Benchmark
+    public int Pick() {
+        return picker.Pick(1);
+    }
+}
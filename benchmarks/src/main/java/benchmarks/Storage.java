@@ -0,0 +1,13 @@
+package benchmarks;
+
+import java.io.IOException;
+
+// Piece I/O through FileHandler, implemented by StorageFixture
+public interface Storage {
+    void Setup(int no_of_pieces, int piece_size) throws IOException;
+
+    byte[] GetPiece(int index) throws IOException;
+
+    // Write a whole piece and mark it, which also persists its bit for a restart
+    boolean WriteAndSetPiece(int index) throws IOException;
+}
@@ -0,0 +1,39 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Reads and writes go to peer_1001/bench.dat in the working directory and mostly hit the page cache
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StorageBenchmark {
+    private static final int NO_OF_PIECES = 256;
+
+    @Param({"16384", "262144"})
+    public int piece_size;
+
+    private Storage storage;
+    private int index;
+
+    @Setup
+    public void Setup() throws IOException {
+        storage = Fixtures.Load("StorageFixture", Storage.class);
+        storage.Setup(NO_OF_PIECES, piece_size);
+    }
+
+    @Benchmark
+    public byte[] GetPiece() throws IOException {
+        return storage.GetPiece(index++ & (NO_OF_PIECES - 1));
+    }
+
+    @Benchmark
+    public boolean WriteAndSetPiece() throws IOException {
+        return storage.WriteAndSetPiece(index++ & (NO_OF_PIECES - 1));
+    }
+}
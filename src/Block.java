@@ -0,0 +1,29 @@
+// Block is the unit of a REQUEST, PIECE or CANCEL message: length bytes at offset within a piece.
+// Pieces are fetched as blocks of BlockSize bytes (the last block of a piece may be shorter) so a
+// large piece can be downloaded from several neighbors without buffering the whole piece.
+public class Block {
+    final int index;    // Piece index
+    final int offset;   // Offset of the block within the piece
+    final int length;
+
+    public Block(int index, int offset, int length) {
+        this.index  = index;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public boolean equals(Object other) {
+        if (!(other instanceof Block))
+            return false;
+        Block block = (Block) other;
+        return index == block.index && offset == block.offset && length == block.length;
+    }
+
+    public int hashCode() {
+        return 31 * index + offset;
+    }
+
+    public String toString() {
+        return index + "@" + offset;
+    }
+}
@@ -0,0 +1,31 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+// BufferPool recycles direct buffers of one fixed size. It is not thread safe, every
+// EventLoop owns its own pool and only uses it from the loop thread.
+public class BufferPool {
+    private final int buffer_size;
+    private final int max_pooled;                   // Buffers beyond this are left to the GC
+    private final ArrayDeque<ByteBuffer> free_buffers;
+
+    public BufferPool(int buffer_size, int max_pooled) {
+        this.buffer_size  = buffer_size;
+        this.max_pooled   = max_pooled;
+        this.free_buffers = new ArrayDeque<>();
+    }
+
+    // Take a cleared buffer from the pool, allocating only when the pool is empty
+    public ByteBuffer Acquire() {
+        ByteBuffer buffer = free_buffers.poll();
+        if (buffer == null)
+            buffer = ByteBuffer.allocateDirect(buffer_size);
+        buffer.clear();
+        return buffer;
+    }
+
+    // Return a buffer once it has been completely written
+    public void Release(ByteBuffer buffer) {
+        if (free_buffers.size() < max_pooled)
+            free_buffers.push(buffer);
+    }
+}
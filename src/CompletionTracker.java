@@ -0,0 +1,37 @@
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// CompletionTracker knows which neighbors have the complete file, as seen from their BITFIELD and
+// HAVE messages. Every neighbor is counted once, however many times its completion is seen, so the
+// swarm is complete exactly when every neighbor in PeerInfo.cfg has been marked.
+public class CompletionTracker {
+    private final ConcurrentIntMap complete;
+    private final AtomicInteger no_of_complete;
+    private final int no_of_neighbors;
+
+    public CompletionTracker(Collection<Integer> neighbor_ids) {
+        this.complete        = new ConcurrentIntMap(neighbor_ids);
+        this.no_of_complete  = new AtomicInteger(0);
+        this.no_of_neighbors = neighbor_ids.size();
+    }
+
+    // Returns true only the first time the neighbor is marked
+    public boolean MarkComplete(int peer_id) {
+        if (!complete.CompareAndSet(peer_id, 0, 1))
+            return false;
+        no_of_complete.incrementAndGet();
+        return true;
+    }
+
+    public boolean IsComplete(int peer_id) {
+        return complete.Is(peer_id);
+    }
+
+    public int GetCompleteCount() {
+        return no_of_complete.get();
+    }
+
+    public boolean AllNeighborsComplete() {
+        return no_of_complete.get() == no_of_neighbors;
+    }
+}
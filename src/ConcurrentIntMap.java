@@ -0,0 +1,98 @@
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// ConcurrentIntMap maps peer ids to long values without boxing or locks. All the peers are known
+// from PeerInfo.cfg, so the set of keys is fixed when the map is created: the key table is never
+// resized and lookups need no synchronization, only the values are updated atomically.
+public class ConcurrentIntMap {
+    private static final int EMPTY = Integer.MIN_VALUE;
+
+    private final int[] keys;            // Open addressing table with linear probing
+    private final AtomicLongArray values;
+    private final int mask;
+    private final int[] key_list;        // Keys in insertion order for iteration
+
+    public ConcurrentIntMap(Collection<Integer> key_set) {
+        int capacity = Integer.highestOneBit(Math.max(2, key_set.size() * 2) - 1) << 1;
+        this.keys     = new int[capacity];
+        this.values   = new AtomicLongArray(capacity);
+        this.mask     = capacity - 1;
+        this.key_list = new int[key_set.size()];
+        Arrays.fill(keys, EMPTY);
+
+        int i = 0;
+        for (int key : key_set) {
+            int slot = Hash(key) & mask;
+            while (keys[slot] != EMPTY && keys[slot] != key)
+                slot = (slot + 1) & mask;
+            if (keys[slot] == EMPTY)
+                key_list[i++] = key;
+            keys[slot] = key;
+        }
+    }
+
+    private static int Hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // Slot of the key, -1 if the key is not in the map
+    private int Slot(int key) {
+        int slot = Hash(key) & mask;
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int SlotOf(int key) {
+        int slot = Slot(key);
+        if (slot == -1)
+            throw new IllegalArgumentException("Unknown peer " + key);
+        return slot;
+    }
+
+    public boolean ContainsKey(int key) {
+        return Slot(key) != -1;
+    }
+
+    public long Get(int key) {
+        int slot = Slot(key);
+        return slot == -1 ? 0 : values.get(slot);
+    }
+
+    public void Put(int key, long value) {
+        values.set(SlotOf(key), value);
+    }
+
+    public long AddAndGet(int key, long delta) {
+        return values.addAndGet(SlotOf(key), delta);
+    }
+
+    public boolean CompareAndSet(int key, long expected, long value) {
+        return values.compareAndSet(SlotOf(key), expected, value);
+    }
+
+    // Boolean view of the value, used for the choke and interest flags
+    public boolean Is(int key) {
+        return Get(key) != 0;
+    }
+
+    public void Set(int key, boolean flag) {
+        Put(key, flag ? 1 : 0);
+    }
+
+    // Keys of the map, the array must not be modified
+    public int[] Keys() {
+        return key_list;
+    }
+
+    // Reset every value to 0
+    public void Clear() {
+        for (int slot = 0; slot < keys.length; slot++)
+            values.set(slot, 0);
+    }
+}
@@ -0,0 +1,52 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+
+// ConfigWatcher applies the rate limits of Common.cfg while the peer runs: it checks the file once
+// a second and hands the rate keys to the Session when the file changed. The other keys are only
+// read at start.
+public class ConfigWatcher extends Thread {
+    public static final String[] RATE_KEYS = { "MaxUploadRate", "MaxDownloadRate",
+            "MaxUploadRatePerPeer", "MaxDownloadRatePerPeer" };
+
+    private final Session session;
+    private final File config_file;
+
+    public ConfigWatcher(Session session, String config_file_name) {
+        super("ConfigWatcher-" + session.peer_id);
+        this.session     = session;
+        this.config_file = new File(config_file_name);
+        setDaemon(true);
+    }
+
+    public void run() {
+        // Only changes made after the start are applied, the values read at start may have been
+        // replaced (e.g. by the options of SwarmSimulator)
+        long last_modified = config_file.lastModified();
+        try {
+            while (true) {
+                Thread.sleep(1000);
+                long modified = config_file.lastModified();
+                if (modified == last_modified)
+                    continue;
+                last_modified = modified;
+                try {
+                    HashMap<String, String> rates = new HashMap<>();
+                    for (String line : Files.readAllLines(config_file.toPath())) {
+                        String[] line_split = line.trim().split(" ");
+                        for (String key : RATE_KEYS) {
+                            if (line_split.length == 2 && line_split[0].equals(key))
+                                rates.put(key, line_split[1]);
+                        }
+                    }
+                    session.SetRateLimits(rates);
+                } catch (IOException | NumberFormatException e) {
+                    System.out.println("Cannot reload " + config_file + ": " + e);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Interrupted when the session stops
+        }
+    }
+}
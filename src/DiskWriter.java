@@ -0,0 +1,378 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// DiskWriter writes the received blocks of every torrent of the session behind the network
+// threads: the connection copies the block out of its receive buffer and queues it, a writer
+// thread (DiskWriterThreads) writes it. The blocks queued for a file are kept sorted by offset, and
+// a writer takes all of them at once and writes each run of adjacent blocks with one gathering
+// write, so pieces arriving in order become large sequential writes. A piece with a block that
+// could not be written is never committed: WhenWritten() runs its on_failed action instead.
+//
+// At most MaxWriteBehindBytes are queued. Blocks already requested are always accepted, but no new
+// blocks are requested while the queue is full (see P2PMessageHandler.AdmitRequest); the pipelines
+// are filled again once it is half empty. So a slow disk slows the download instead of the memory
+// growing or a network thread waiting.
+//
+// FsyncPolicy: close (default) forces the file to disk when the torrent stops, piece forces it
+// before a piece is verified and announced, so a piece in the saved bitfield is always on disk,
+// interval forces it every FsyncIntervalSeconds while blocks are written.
+public class DiskWriter {
+    // Most blocks in one gathering write
+    private static final int MAX_RUN_BLOCKS = 256;
+
+    private final Logger logger;
+    private final long max_queued_bytes;
+    private final String fsync_policy;
+    private final long fsync_interval_nanos;
+    private final ReentrantLock lock;
+    private final Condition work;          // A file has blocks to write, or the writer stops
+    private final Condition written;       // Blocks were written, for Flush()
+    private final HashMap<FileHandler, FileWrites> files;
+    private final ArrayDeque<FileWrites> dirty_files;  // Files with blocks and no writer on them
+    private final ArrayDeque<Runnable> ready_actions;  // WhenWritten() actions of pieces written already
+    private final ArrayList<Runnable> room_waiters;    // Run once the queue is half empty
+    private final Thread[] writers;
+    private long queued_bytes;
+    private boolean stopped;
+
+    // Blocks of one file waiting to be written, by file offset
+    private static class FileWrites {
+        final FileHandler file_handler;
+        TreeMap<Long, BlockWrite> blocks = new TreeMap<>();
+        final HashMap<Integer, Integer> pending_blocks = new HashMap<>();  // Per piece, queued or being written
+        final HashMap<Integer, Runnable> on_written = new HashMap<>();     // Per piece, see WhenWritten
+        final HashMap<Integer, Runnable> on_failed = new HashMap<>();      // Per piece, see WhenWritten
+        final HashSet<Integer> failed_pieces = new HashSet<>();            // A block failed to be written
+        boolean writing;                                                   // A writer has its blocks
+        long last_fsync = System.nanoTime();
+        boolean unsynced;
+
+        FileWrites(FileHandler file_handler) {
+            this.file_handler = file_handler;
+        }
+    }
+
+    private static class BlockWrite {
+        final int index;
+        final ByteBuffer data;
+
+        BlockWrite(int index, ByteBuffer data) {
+            this.index = index;
+            this.data  = data;
+        }
+    }
+
+    public DiskWriter(String name, Logger logger, int no_of_threads, long max_queued_bytes, String fsync_policy, int fsync_interval_seconds) {
+        if (!fsync_policy.equals("close") && !fsync_policy.equals("piece") && !fsync_policy.equals("interval"))
+            throw new IllegalArgumentException("FsyncPolicy must be close, piece or interval, not " + fsync_policy);
+        this.logger               = logger;
+        this.max_queued_bytes     = max_queued_bytes;
+        this.fsync_policy         = fsync_policy;
+        this.fsync_interval_nanos = TimeUnit.SECONDS.toNanos(fsync_interval_seconds);
+        this.lock                 = new ReentrantLock();
+        this.work                 = lock.newCondition();
+        this.written              = lock.newCondition();
+        this.files                = new HashMap<>();
+        this.dirty_files          = new ArrayDeque<>();
+        this.ready_actions        = new ArrayDeque<>();
+        this.room_waiters         = new ArrayList<>();
+        this.writers              = new Thread[Math.max(1, no_of_threads)];
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new Thread(this::WriteLoop, name + "-" + i);
+            writers[i].setDaemon(true);
+            writers[i].start();
+        }
+    }
+
+    // Queue a received block, copied out of the receive buffer. Never blocks. Only the first copy
+    // of a block may be queued (see PiecePicker.BlockReceived), a block already queued is dropped.
+    public void Write(FileHandler file_handler, int index, int offset, ByteBuffer data) {
+        long position = file_handler.GetPieceOffset(index) + offset;
+        ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data).flip();
+        lock.lock();
+        try {
+            FileWrites file = files.computeIfAbsent(file_handler, FileWrites::new);
+            if (file.blocks.putIfAbsent(position, new BlockWrite(index, copy)) != null)
+                return;
+            file.pending_blocks.merge(index, 1, Integer::sum);
+            queued_bytes += copy.remaining();
+            if (!file.writing && file.blocks.size() == 1)
+                dirty_files.add(file);
+            work.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Run the action on a writer thread once the blocks of the piece queued so far are written, and
+    // forced to disk with FsyncPolicy piece. Used to verify or commit a piece after its last block.
+    // If a block of the piece failed to be written on_failed runs instead, the piece must then be
+    // downloaded again.
+    public void WhenWritten(FileHandler file_handler, int index, Runnable action, Runnable on_failed) {
+        lock.lock();
+        try {
+            FileWrites file = files.computeIfAbsent(file_handler, FileWrites::new);
+            if (file.pending_blocks.containsKey(index)) {
+                file.on_written.put(index, action);
+                file.on_failed.put(index, on_failed);
+                return;
+            }
+            if (file.failed_pieces.remove(index)) {
+                ready_actions.add(on_failed);
+                work.signal();
+                return;
+            }
+            // Everything is written already, but the caller must not wait for the fsync
+            ready_actions.add(() -> {
+                if (fsync_policy.equals("piece"))
+                    Force(file_handler);
+                action.run();
+            });
+            work.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // True if more blocks may be requested, false while MaxWriteBehindBytes are queued
+    public boolean HasRoom() {
+        lock.lock();
+        try {
+            return queued_bytes < max_queued_bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Block bytes waiting to be written, for the metrics
+    public long GetQueuedBytes() {
+        lock.lock();
+        try {
+            return queued_bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Run the action once the queue is half empty, right away if the queue is not full
+    public void WhenRoom(Runnable action) {
+        lock.lock();
+        try {
+            if (queued_bytes >= max_queued_bytes) {
+                room_waiters.add(action);
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        action.run();
+    }
+
+    // Wait until the blocks queued for the file are written and their pieces handled, at most
+    // timeout_ms. Called before the file is closed.
+    public void Flush(FileHandler file_handler, long timeout_ms) throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeout_ms);
+        lock.lock();
+        try {
+            FileWrites file = files.get(file_handler);
+            while (file != null && (file.writing || !file.blocks.isEmpty()) && remaining > 0)
+                remaining = written.awaitNanos(remaining);
+            // Drops the failed pieces too, the saved bitfield never has them
+            files.remove(file_handler);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void WriteLoop() {
+        while (true) {
+            FileWrites file;
+            TreeMap<Long, BlockWrite> blocks = null;
+            Runnable ready = null;
+            ArrayList<FileHandler> due = new ArrayList<>();
+            lock.lock();
+            try {
+                while ((file = dirty_files.poll()) == null && (ready = ready_actions.poll()) == null) {
+                    if (stopped)
+                        return;
+                    try {
+                        if (fsync_policy.equals("interval"))
+                            work.awaitNanos(fsync_interval_nanos);
+                        else
+                            work.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    TakeDueFiles(due);
+                    if (!due.isEmpty())
+                        break;
+                }
+                if (file != null) {
+                    file.writing = true;
+                    blocks = file.blocks;
+                    file.blocks = new TreeMap<>();
+                }
+            } finally {
+                lock.unlock();
+            }
+            for (FileHandler file_handler : due)
+                Force(file_handler);
+            if (ready != null)
+                Run(ready);
+            if (file == null)
+                continue;
+
+            HashSet<Integer> failed = new HashSet<>();
+            long bytes = WriteRuns(file.file_handler, blocks, failed);
+
+            ArrayList<Runnable> actions = new ArrayList<>();
+            ArrayList<Runnable> failed_actions = new ArrayList<>();
+            ArrayList<Runnable> waiters = new ArrayList<>();
+            boolean force;
+            lock.lock();
+            try {
+                queued_bytes -= bytes;
+                file.failed_pieces.addAll(failed);
+                for (BlockWrite block : blocks.values()) {
+                    if (file.pending_blocks.merge(block.index, -1, Integer::sum) == 0) {
+                        file.pending_blocks.remove(block.index);
+                        Runnable action = file.on_written.remove(block.index);
+                        Runnable on_failed = file.on_failed.remove(block.index);
+                        if (action != null && file.failed_pieces.remove(block.index))
+                            failed_actions.add(on_failed);
+                        else if (action != null)
+                            actions.add(action);
+                    }
+                }
+                if (queued_bytes < max_queued_bytes / 2) {
+                    waiters.addAll(room_waiters);
+                    room_waiters.clear();
+                }
+                file.unsynced = true;
+                force = fsync_policy.equals("piece") ? !actions.isEmpty() : IsDue(file, System.nanoTime());
+                if (force)
+                    Synced(file);
+            } finally {
+                lock.unlock();
+            }
+            if (force)
+                Force(file.file_handler);
+            for (Runnable action : actions)
+                Run(action);
+            for (Runnable action : failed_actions)
+                Run(action);
+            for (Runnable waiter : waiters)
+                Run(waiter);
+            lock.lock();
+            try {
+                file.writing = false;
+                if (!file.blocks.isEmpty()) {
+                    dirty_files.add(file);
+                    work.signal();
+                }
+                written.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Write the blocks in runs of adjacent ones, returns the bytes written or dropped on an error.
+    // The pieces of a run which could not be written are added to failed.
+    private long WriteRuns(FileHandler file_handler, TreeMap<Long, BlockWrite> blocks, HashSet<Integer> failed) {
+        long bytes = 0;
+        BlockWrite[] run = new BlockWrite[MAX_RUN_BLOCKS];
+        ByteBuffer[] run_data = new ByteBuffer[MAX_RUN_BLOCKS];
+        int run_length = 0;
+        long run_position = 0, run_end = 0;
+        for (Map.Entry<Long, BlockWrite> entry : blocks.entrySet()) {
+            ByteBuffer data = entry.getValue().data;
+            bytes += data.remaining();
+            if (run_length > 0 && (entry.getKey() != run_end || run_length == MAX_RUN_BLOCKS)) {
+                WriteRun(file_handler, run_position, run, run_data, run_length, failed);
+                run_length = 0;
+            }
+            if (run_length == 0)
+                run_position = run_end = entry.getKey();
+            run[run_length] = entry.getValue();
+            run_data[run_length++] = data;
+            run_end += data.remaining();
+        }
+        if (run_length > 0)
+            WriteRun(file_handler, run_position, run, run_data, run_length, failed);
+        return bytes;
+    }
+
+    private void WriteRun(FileHandler file_handler, long position, BlockWrite[] run, ByteBuffer[] run_data, int run_length,
+                          HashSet<Integer> failed) {
+        try {
+            file_handler.WriteBlocks(position, run_data, run_length);
+        } catch (IOException e) {
+            logger.log(Logger.Level.ERROR, "cannot write " + run_length + " blocks at offset " + position + ", their pieces are downloaded again: " + e);
+            for (int i = 0; i < run_length; i++)
+                failed.add(run[i].index);
+        }
+    }
+
+    // With FsyncPolicy interval, a file is forced once FsyncIntervalSeconds passed since the last
+    // time and blocks were written since. Called with the lock held.
+    private boolean IsDue(FileWrites file, long now) {
+        return fsync_policy.equals("interval") && file.unsynced && now - file.last_fsync >= fsync_interval_nanos;
+    }
+
+    private void Synced(FileWrites file) {
+        file.unsynced   = false;
+        file.last_fsync = System.nanoTime();
+    }
+
+    // The idle files due to be forced, forced by the caller once the lock is released
+    private void TakeDueFiles(ArrayList<FileHandler> due) {
+        long now = System.nanoTime();
+        for (FileWrites file : files.values()) {
+            if (!file.writing && IsDue(file, now)) {
+                Synced(file);
+                due.add(file.file_handler);
+            }
+        }
+    }
+
+    private void Force(FileHandler file_handler) {
+        try {
+            file_handler.Force();
+        } catch (IOException e) {
+            logger.log(Logger.Level.ERROR, "cannot force the file to disk: " + e);
+        }
+    }
+
+    private static void Run(Runnable action) {
+        try {
+            action.run();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Write what is queued and stop the writers, at most timeout_ms
+    public void Shutdown(long timeout_ms) throws InterruptedException {
+        lock.lock();
+        try {
+            stopped = true;
+            work.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        long deadline = System.currentTimeMillis() + timeout_ms;
+        for (Thread writer : writers)
+            writer.join(Math.max(1, deadline - System.currentTimeMillis()));
+    }
+}
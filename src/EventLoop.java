@@ -0,0 +1,149 @@
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// EventLoop serves many neighbor connections from one thread by waiting on a Selector.
+// Other threads hand work to the loop through Execute() instead of touching connections directly.
+public class EventLoop extends Thread {
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> pending_tasks;
+    private final PriorityQueue<ScheduledTask> scheduled_tasks; // Tasks waiting for their time, only used on the loop
+    private final BufferPool header_pool;   // 13-byte PIECE headers (length, type, index, offset)
+    private final BufferPool message_pool;  // Buffers the other messages are encoded into
+    private volatile boolean running;
+    private long drain_deadline;            // Until when the connections may finish writing after Shutdown()
+
+    public EventLoop(String name) throws IOException {
+        super(name);
+        this.selector        = Selector.open();
+        this.pending_tasks   = new ConcurrentLinkedQueue<>();
+        this.scheduled_tasks = new PriorityQueue<>();
+        this.header_pool     = new BufferPool(13, 1024);
+        this.message_pool    = new BufferPool(SelectorConnection.MESSAGE_BUFFER_SIZE, 256);
+        this.running         = true;
+    }
+
+    // True if the caller is running on this event loop
+    public boolean InEventLoop() {
+        return Thread.currentThread() == this;
+    }
+
+    // Pool of PIECE header buffers, only to be used on the event loop
+    public BufferPool GetHeaderPool() {
+        return header_pool;
+    }
+
+    // Pool of message buffers, only to be used on the event loop
+    public BufferPool GetMessagePool() {
+        return message_pool;
+    }
+
+    // Run the task on the event loop; runs inline if already on the loop
+    public void Execute(Runnable task) {
+        if (InEventLoop()) {
+            task.run();
+            return;
+        }
+        pending_tasks.add(task);
+        selector.wakeup();
+    }
+
+    // Run the task on the event loop after delay_nanos, used to pace transfers under a rate limit
+    public void Schedule(Runnable task, long delay_nanos) {
+        long due = System.nanoTime() + delay_nanos;
+        Execute(() -> scheduled_tasks.add(new ScheduledTask(due, task)));
+    }
+
+    // Register the channel with this loop's selector, must be called on the event loop
+    public SelectionKey Register(SelectableChannel channel, int ops, SelectorConnection connection) throws ClosedChannelException {
+        return channel.register(selector, ops, connection);
+    }
+
+    // Stop the loop: every connection writes what is queued and is closed, the connections which
+    // are still writing after timeout_ms are closed by the loop before it exits
+    public void Shutdown(long timeout_ms) {
+        Execute(() -> {
+            if (!running)
+                return;
+            drain_deadline = System.currentTimeMillis() + timeout_ms;
+            running = false;
+            for (SelectionKey key : selector.keys().toArray(new SelectionKey[0]))
+                ((SelectorConnection) key.attachment()).CloseGracefully();
+        });
+    }
+
+    private void RunPendingTasks() {
+        Runnable task;
+        while ((task = pending_tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        long now = System.nanoTime();
+        while (!scheduled_tasks.isEmpty() && scheduled_tasks.peek().due - now <= 0) {
+            try {
+                scheduled_tasks.poll().task.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Milliseconds the selector may wait for the next scheduled task, 0 to wait for ever
+    private long SelectTimeout() {
+        if (scheduled_tasks.isEmpty())
+            return 0;
+        return Math.max(1, (scheduled_tasks.peek().due - System.nanoTime() + 999_999) / 1_000_000);
+    }
+
+    private static class ScheduledTask implements Comparable<ScheduledTask> {
+        final long due;         // System.nanoTime() at which the task runs
+        final Runnable task;
+
+        ScheduledTask(long due, Runnable task) {
+            this.due  = due;
+            this.task = task;
+        }
+
+        public int compareTo(ScheduledTask other) {
+            return Long.compare(due, other.due);
+        }
+    }
+
+    public void run() {
+        try {
+            while (running || (!selector.keys().isEmpty() && System.currentTimeMillis() < drain_deadline)) {
+                // Blocks until a socket is ready, another thread posts a task or a scheduled task is due
+                selector.select(running ? SelectTimeout() : 100);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    SelectorConnection connection = (SelectorConnection) key.attachment();
+                    try {
+                        connection.HandleReadyOps(key);
+                    } catch (RuntimeException e) {
+                        // A failing connection must not take down the other connections on this loop
+                        e.printStackTrace(System.out);
+                        connection.Close();
+                    }
+                }
+                RunPendingTasks();
+            }
+            for (SelectionKey key : selector.keys())
+                ((SelectorConnection) key.attachment()).Close();
+            selector.close();
+        } catch (IOException e) {
+            System.out.println("Exception in EventLoop " + getName());
+            e.printStackTrace();
+        }
+    }
+}
@@ -1,72 +1,156 @@
-import java.io.*;
-import java.nio.file.Files;
-
-public class FileHandler {
-    private static String file_name;
-    private peerProcess host_peer;
-    private byte[][] file_pieces;
-    private Integer piece_size;
-    private Integer file_size;
-    public FileHandler(peerProcess host_peer) {
-        file_name = "peer_" + host_peer.peer_id.toString() + "/" + host_peer.config_params.get("FileName");
-        this.host_peer = host_peer;
-        piece_size = Integer.parseInt(host_peer.config_params.get("PieceSize"));
-        file_size  = Integer.parseInt(host_peer.config_params.get("FileSize"));
-        file_pieces = new byte[host_peer.no_of_pieces][piece_size];
-    }
-
-    // Method to convert file into pieces based on the configuration details
-    public void ConvertFileToPieces() throws IOException {
-        // If host doesn't have a file, then return
-        if (!host_peer.host_details.has_file)
-            return;
-        File file = new File(file_name);
-        byte[] file_data_in_bytes = Files.readAllBytes(file.toPath());
-
-        int file_bytes_index = 0;
-
-        for (int i = 0; i < host_peer.no_of_pieces; i++) {
-            // Determine the size of the current piece
-            int currentPieceSize = piece_size;
-            
-            // Adjust size for the last piece if file size isn't a perfect multiple of piece size     
-            if (i == host_peer.no_of_pieces - 1 && file_size % piece_size != 0) {
-                currentPieceSize = file_size % piece_size;
-            }
-        
-            byte[] piece = new byte[currentPieceSize];
-            // Copying contents from the file to the current piece
-            for (int j = 0; j < currentPieceSize && file_bytes_index < file_data_in_bytes.length; j++) {
-                piece[j] = file_data_in_bytes[file_bytes_index++];
-            }
-            file_pieces[i] = piece;
-        }
-    }
-
-    // Return the piece for a given index
-    public byte[] GetPiece(int index) {
-        return file_pieces[index];
-    }
-
-    // Write the received piece on a given index
-    public void SetPiece(int index, byte[] data) {
-        if (host_peer.host_details.bitfield_piece_index.get(index))
-            return;
-        file_pieces[index] = data;
-        host_peer.host_details.bitfield_piece_index.set(index, true);
-    }
-
-    // Build the file from pieces once all the pieces are received
-    public void BuildFile() throws IOException {
-        File file = new File(file_name);
-        FileOutputStream file_stream = new FileOutputStream(file);
-        for (int i = 0; i < host_peer.no_of_pieces; i++) {
-            if(i == host_peer.no_of_pieces - 1) {
-                file_stream.write(file_pieces[i], 0, file_size % piece_size);
-            } else {
-                file_stream.write(file_pieces[i]);
-            }
-        }
-        file_stream.close();    
-    }
-}
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+// FileHandler stores the pieces directly in the target file. Pieces are read and written at their
+// offsets with positional FileChannel I/O, so heap usage does not depend on the file size.
+public class FileHandler {
+    private String file_name;
+    private String bitfield_file_name;  // Pieces completed so far, kept next to the file to resume after a restart
+    private peerProcess host_peer;
+    private Integer piece_size;
+    private long file_size;
+    private FileChannel file_channel; // Target file, preallocated to file_size
+    private FileChannel bitfield_channel; // Saved bitfield, in the layout of the BITFIELD message
+    private final ReentrantLock lock = new ReentrantLock(); // Serializes writes of the saved bitfield
+    public final Metrics.Histogram read_latency  = new Metrics.Histogram(); // Piece reads, for verification or the piece cache
+    public final Metrics.Histogram write_latency = new Metrics.Histogram(); // Gathering writes of the DiskWriter
+
+    public FileHandler(peerProcess host_peer) {
+        file_name = "peer_" + host_peer.peer_id.toString() + "/" + host_peer.config_params.get("FileName");
+        bitfield_file_name = file_name + ".bitfield";
+        this.host_peer = host_peer;
+        piece_size = Integer.parseInt(host_peer.config_params.get("PieceSize"));
+        file_size  = Long.parseLong(host_peer.config_params.get("FileSize"));
+    }
+
+    // Open the file, if host doesn't have it then create and preallocate it to the full size
+    public void OpenFile() throws IOException {
+        File file = new File(file_name);
+        if (host_peer.host_details.has_file) {
+            file_channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            return;
+        }
+        if (file.getParentFile() != null)
+            file.getParentFile().mkdirs();
+        file_channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        // Writing the last byte extends the file (sparse where supported) so pieces can be written at any offset
+        if (file_channel.size() < file_size)
+            file_channel.write(ByteBuffer.wrap(new byte[1]), file_size - 1);
+        bitfield_channel = FileChannel.open(new File(bitfield_file_name).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    // Read the bitfield saved before a restart, null if the host has not completed any piece yet
+    public PieceBitfield LoadBitField() throws IOException {
+        if (bitfield_channel == null || bitfield_channel.size() == 0)
+            return null;
+        ByteBuffer saved = ByteBuffer.allocate((int) Math.min(bitfield_channel.size(), (host_peer.no_of_pieces + 7) / 8));
+        bitfield_channel.read(saved, 0);
+        saved.flip();
+        return PieceBitfield.FromBytes(saved, host_peer.no_of_pieces);
+    }
+
+    // Overwrite the saved bitfield with the host's bitfield, encoded like the BITFIELD message
+    public void SaveBitField() throws IOException {
+        lock.lock();
+        try {
+            byte[] bits = host_peer.host_details.bitfield_piece_index.ToByteArray();
+            bitfield_channel.truncate(bits.length);
+            bitfield_channel.write(ByteBuffer.wrap(bits), 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Rewrite the one byte of the saved bitfield holding the piece. The byte is read from the
+    // host's bitfield under the lock so that concurrent pieces in the same byte are not lost.
+    private void SaveBit(int index) throws IOException {
+        lock.lock();
+        try {
+            byte bits = host_peer.host_details.bitfield_piece_index.GetByte(index / 8);
+            bitfield_channel.write(ByteBuffer.wrap(new byte[] { bits }), index / 8);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns the channel of the file, pieces marked in the bitfield can be served from it
+    public FileChannel GetFileChannel() {
+        return file_channel;
+    }
+
+    // Offset of the piece in the file
+    public long GetPieceOffset(int index) {
+        return (long) index * piece_size;
+    }
+
+    // Length of the piece, the last piece may be shorter
+    public int GetPieceLength(int index) {
+        if (index == host_peer.no_of_pieces - 1 && file_size % piece_size != 0)
+            return (int) (file_size % piece_size);
+        return piece_size;
+    }
+
+    // Return the piece for a given index
+    public byte[] GetPiece(int index) throws IOException {
+        long start = System.nanoTime();
+        ByteBuffer piece = ByteBuffer.allocate(GetPieceLength(index));
+        long offset = GetPieceOffset(index);
+        while (piece.hasRemaining()) {
+            if (file_channel.read(piece, offset + piece.position()) == -1)
+                throw new EOFException("Piece " + index + " is beyond the end of " + file_name);
+        }
+        read_latency.RecordSince(start);
+        return piece.array();
+    }
+
+    // Write adjacent blocks starting at position with one gathering write. Moves the channel's
+    // position, which no other I/O uses, so only one thread may call it at a time (see DiskWriter).
+    public void WriteBlocks(long position, ByteBuffer[] blocks, int no_of_blocks) throws IOException {
+        long start = System.nanoTime();
+        file_channel.position(position);
+        int first = 0;
+        while (first < no_of_blocks) {
+            file_channel.write(blocks, first, no_of_blocks - first);
+            while (first < no_of_blocks && !blocks[first].hasRemaining())
+                first++;
+        }
+        write_latency.RecordSince(start);
+    }
+
+    // Force the written pieces to disk, see FsyncPolicy
+    public void Force() throws IOException {
+        file_channel.force(false);
+    }
+
+    // Force the file and the saved bitfield to disk and close them when the peer shuts down
+    public void Close() throws IOException {
+        if (bitfield_channel != null) {
+            bitfield_channel.force(false);
+            bitfield_channel.close();
+        }
+        if (file_channel != null) {
+            file_channel.force(false);
+            file_channel.close();
+        }
+    }
+
+    // Mark a completely written piece in the bitfield and save it for a restart. Returns true only
+    // for the caller that marked it, if two neighbors complete the same piece at once only one of
+    // them announces it.
+    public boolean SetPiece(int index) {
+        if (!host_peer.host_details.bitfield_piece_index.Set(index))
+            return false;
+        try {
+            SaveBit(index);
+        } catch (IOException e) {
+            // The piece is on disk, only resuming it after a restart is lost
+            e.printStackTrace();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,89 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+// FrameDecoder reassembles length-prefixed messages (4-byte length, 1-byte type, payload) from a
+// stream in which TCP may split a message across reads or merge several messages into one read.
+// The receive buffer is reused across reads and only grows when a single frame does not fit.
+public class FrameDecoder {
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    private int max_frame_size;       // Upper bound for a frame, protects against a corrupt length
+    private ByteBuffer buffer;        // Always in write mode, bytes [read_index, position) are unparsed
+    private int read_index;           // Start of the first unparsed byte
+    private int pending_frame_size;   // Size of the incomplete frame at read_index, 0 if unknown
+    private final Message frame;      // Flyweight every frame is decoded into
+
+    public FrameDecoder(int max_frame_size) {
+        this.max_frame_size     = max_frame_size;
+        this.buffer             = ByteBuffer.allocateDirect(Math.min(INITIAL_CAPACITY, max_frame_size));
+        this.read_index         = 0;
+        this.pending_frame_size = 0;
+        this.frame              = new Message();
+    }
+
+    // The biggest frame depends on the torrent (its block size and number of pieces), which an
+    // incoming connection only knows after the handshake
+    public void SetMaxFrameSize(int max_frame_size) {
+        this.max_frame_size = max_frame_size;
+    }
+
+    // Read as much as the channel has into the buffer, returns -1 on end of stream
+    public int ReadFrom(ReadableByteChannel channel) throws IOException {
+        // Move the unparsed bytes to the front, payload views handed out earlier become invalid
+        if (read_index > 0) {
+            buffer.limit(buffer.position()).position(read_index);
+            buffer.compact();
+            read_index = 0;
+        }
+        // Grow only if the frame we are waiting for cannot fit in the buffer
+        if (pending_frame_size > buffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(Math.min(max_frame_size,
+                    Math.max(pending_frame_size, buffer.capacity() * 2)));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+        return channel.read(buffer);
+    }
+
+    // Number of received bytes not consumed yet
+    public int Available() {
+        return buffer.position() - read_index;
+    }
+
+    // Copy the next dst.length raw bytes out of the stream (used for the handshake)
+    public boolean Consume(byte[] dst) {
+        if (Available() < dst.length)
+            return false;
+        ByteBuffer view = buffer.duplicate();
+        view.limit(buffer.position()).position(read_index);
+        view.get(dst);
+        read_index += dst.length;
+        return true;
+    }
+
+    // Decode the next complete frame without copying or allocating. The returned Message is the
+    // decoder's flyweight pointing into the receive buffer, it is only valid until the next
+    // NextFrame() or ReadFrom(). Returns null if the buffer holds only part of the next frame.
+    public Message NextFrame() throws IOException {
+        if (Available() < Message.HEADER_SIZE)
+            return null;
+        // Header is decoded in place; the length does not include the length field or type byte
+        int payload_length = buffer.getInt(read_index);
+        // Compared before adding the header, a length near Integer.MAX_VALUE would overflow
+        if (payload_length < 0 || payload_length > max_frame_size - Message.HEADER_SIZE)
+            throw new IOException("Invalid message length " + payload_length);
+        int frame_size = Message.FrameSize(payload_length);
+        if (Available() < frame_size) {
+            pending_frame_size = frame_size;
+            return null;
+        }
+        MessageType message_type = MessageType.FromId(buffer.get(read_index + 4));
+        frame.Reset(message_type, buffer, read_index + Message.HEADER_SIZE, payload_length);
+
+        read_index        += frame_size;
+        pending_frame_size = 0;
+        return frame;
+    }
+}
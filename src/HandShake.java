@@ -1,30 +1,53 @@
-public class HandShake {
-    private static String handshake_header;
-    private String zero_bits;
-    private String peer_id;
-
-    public HandShake(Integer id) {
-        peer_id          = String.valueOf(id);
-        handshake_header = "P2PFILESHARINGPROJ";
-        zero_bits        = "0000000000";
-    }
-
-    // Builds Handshake message and returns in a byte array format
-    public byte[] BuildHandshakeMessage() {
-        String handshake_msg = handshake_header + zero_bits + peer_id;
-        return handshake_msg.getBytes();
-    }
-
-    // Verifies if the received handshake message has a valid handshake header and peer ID
-    public boolean VerifyHandShakeMessage(byte[] handshake_msg, int id) {
-        String msg = new String(handshake_msg);
-        return msg.substring(0, 18).equals(handshake_header) &&
-                msg.substring(28).equals(String.valueOf(id));
-    }
-
-    // Verifies if the received handshake message has a valid handshake header in case of PeerServer
-    public boolean VerifyHandShakeMessage(byte[] handshake_msg) {
-        String msg = new String(handshake_msg);
-        return msg.substring(0, 18).equals(handshake_header);
-    }
-}
+import java.util.Map;
+
+public class HandShake {
+    private static final String handshake_header = "P2PFILESHARINGPROJ";
+    private String zero_bits;
+    private String peer_id;
+
+    // The 10 zero bits carry the content id of the torrent as 10 decimal digits, so that a peer
+    // serving several files can tell which one the connection is for
+    public HandShake(Integer id, int content_id) {
+        peer_id   = String.valueOf(id);
+        zero_bits = String.format("%010d", content_id);
+    }
+
+    // Builds Handshake message and returns in a byte array format
+    public byte[] BuildHandshakeMessage() {
+        String handshake_msg = handshake_header + zero_bits + peer_id;
+        return handshake_msg.getBytes();
+    }
+
+    // Verifies if the received handshake message has a valid handshake header, content id and peer ID
+    public boolean VerifyHandShakeMessage(byte[] handshake_msg, int id) {
+        String msg = new String(handshake_msg);
+        return msg.substring(0, 18).equals(handshake_header) &&
+                msg.substring(18, 28).equals(zero_bits) &&
+                msg.substring(28).equals(String.valueOf(id));
+    }
+
+    // Verifies if the received handshake message has a valid handshake header in case of PeerServer
+    public static boolean VerifyHandShakeMessage(byte[] handshake_msg) {
+        String msg = new String(handshake_msg);
+        return msg.substring(0, 18).equals(handshake_header);
+    }
+
+    // Content id of the torrent a handshake is for, -1 if the 10 zero bits are not a content id
+    public static int GetContentId(byte[] handshake_msg) {
+        try {
+            return Integer.parseInt(new String(handshake_msg, 18, 10));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Content id of a torrent: ContentId in its config, else derived from the file it shares, so
+    // that all peers of a swarm agree on it. Never negative, it must fit the 10 digits.
+    public static int ContentId(Map<String, String> config_params) {
+        String content_id = config_params.get("ContentId");
+        if (content_id != null)
+            return Integer.parseInt(content_id);
+        String file = config_params.get("FileName") + " " + config_params.get("FileSize") + " " + config_params.get("PieceSize");
+        return file.hashCode() & Integer.MAX_VALUE;
+    }
+}
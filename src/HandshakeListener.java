@@ -0,0 +1,4 @@
+// Callback invoked by PeerConnection once the 32-byte handshake has been received from the neighbor
+public interface HandshakeListener {
+    void HandleHandshake(PeerConnection connection, byte[] hand_shake_rcv);
+}
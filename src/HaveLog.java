@@ -0,0 +1,34 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+// HaveLog is the append-only list of pieces received by the host. Every connection keeps its own
+// cursor into the log and relays a HAVE for each entry it has not sent yet. Writers reserve a
+// slot with one atomic increment, so appends from different event loops never block each other.
+public class HaveLog {
+    private final AtomicIntegerArray entries; // -1 until the slot is published
+    private final AtomicInteger next_slot;
+
+    // A piece is appended at most once, so the log never holds more than no_of_pieces entries
+    public HaveLog(int no_of_pieces) {
+        this.entries   = new AtomicIntegerArray(no_of_pieces);
+        this.next_slot = new AtomicInteger(0);
+        for (int i = 0; i < no_of_pieces; i++)
+            entries.set(i, -1);
+    }
+
+    public void Append(int index) {
+        entries.set(next_slot.getAndIncrement(), index);
+    }
+
+    // Piece at the reader's cursor, -1 if nothing is published there yet
+    public int Get(int cursor) {
+        if (cursor >= entries.length())
+            return -1;
+        return entries.get(cursor);
+    }
+
+    // Number of pieces appended so far
+    public int Size() {
+        return next_slot.get();
+    }
+}
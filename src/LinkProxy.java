@@ -0,0 +1,144 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// LinkProxy stands between two simulated peers on loopback and forwards the bytes of their
+// connection in both directions with a one-way latency and a bandwidth limit, like a network
+// link. The connecting peer is given the proxy's port instead of the other peer's port.
+public class LinkProxy extends Thread {
+    private static final int CHUNK_SIZE = 4096;     // Bytes forwarded at a time, the pacing granularity
+    private static final int QUEUE_CHUNKS = 256;    // Chunks in flight per direction before the sender blocks
+
+    private final ServerSocket listener;
+    private final int target_port;
+    private final long latency_nanos;
+    private final long bytes_per_second;            // 0 for no limit
+    private final CopyOnWriteArrayList<Socket> sockets;
+
+    public LinkProxy(int target_port, long latency_ms, long bandwidth_kbps) throws IOException {
+        super("LinkProxy-" + target_port);
+        this.listener         = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        this.target_port      = target_port;
+        this.latency_nanos    = latency_ms * 1_000_000L;
+        this.bytes_per_second = bandwidth_kbps * 1000 / 8;
+        this.sockets          = new CopyOnWriteArrayList<>();
+        setDaemon(true);
+    }
+
+    public int GetPort() {
+        return listener.getLocalPort();
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                Socket client = listener.accept();
+                Socket server = new Socket();
+                server.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), target_port));
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                sockets.add(client);
+                sockets.add(server);
+                new Direction(client, server).Start();
+                new Direction(server, client).Start();
+            }
+        } catch (IOException e) {
+            // Closed by Close()
+        }
+    }
+
+    public void Close() {
+        try {
+            listener.close();
+            for (Socket socket : sockets)
+                socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Bytes read from the source are queued with their arrival time and written to the destination
+    // once the latency has passed and the link has had the time to send the bytes before them
+    private class Direction {
+        private final Socket source, destination;
+        private final BlockingQueue<Chunk> queue;
+
+        Direction(Socket source, Socket destination) {
+            this.source      = source;
+            this.destination = destination;
+            this.queue       = new ArrayBlockingQueue<>(QUEUE_CHUNKS);
+        }
+
+        void Start() {
+            Thread reader = new Thread(this::Read, getName() + "-read");
+            Thread writer = new Thread(this::Write, getName() + "-write");
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+            reader.start();
+            writer.start();
+        }
+
+        private void Read() {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            try {
+                InputStream in = source.getInputStream();
+                int length;
+                while ((length = in.read(buffer)) != -1)
+                    queue.put(new Chunk(Arrays.copyOf(buffer, length), System.nanoTime()));
+            } catch (IOException | InterruptedException e) {
+                // Connection closed
+            }
+            try {
+                queue.put(Chunk.END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void Write() {
+            long link_free_at = 0;  // When the link has sent everything written so far
+            try {
+                OutputStream out = destination.getOutputStream();
+                while (true) {
+                    Chunk chunk = queue.take();
+                    if (chunk == Chunk.END)
+                        break;
+                    long send_at = Math.max(chunk.arrival + latency_nanos, link_free_at);
+                    SleepUntil(send_at);
+                    out.write(chunk.data);
+                    if (bytes_per_second > 0)
+                        link_free_at = Math.max(send_at, System.nanoTime()) + chunk.data.length * 1_000_000_000L / bytes_per_second;
+                }
+                destination.shutdownOutput();
+            } catch (IOException | InterruptedException e) {
+                // Connection closed
+            }
+        }
+    }
+
+    private static void SleepUntil(long nanos) throws InterruptedException {
+        long remaining;
+        while ((remaining = nanos - System.nanoTime()) > 0)
+            Thread.sleep(remaining / 1_000_000, (int) (remaining % 1_000_000));
+    }
+
+    private static class Chunk {
+        static final Chunk END = new Chunk(new byte[0], 0);
+
+        final byte[] data;
+        final long arrival;
+
+        Chunk(byte[] data, long arrival) {
+            this.data    = data;
+            this.arrival = arrival;
+        }
+    }
+}
@@ -2,12 +2,51 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
+// Logger hands log lines to a background writer thread through a lock-free ring buffer, so the
+// event loops never format dates or touch the file. The writer drains the buffer in batches and
+// writes each batch to the log file, kept open, and to the console with one call each. An idle
+// writer spins briefly, then parks until a producer publishes into the empty buffer and wakes it.
 public class Logger {
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final int CAPACITY = 1 << 14;          // Entries in the ring buffer, a power of 2
+    private static final int IDLE_SPINS = 100;             // Checks for a new entry before the writer parks
+    private static final DateTimeFormatter DATE_FORMAT =
+            DateTimeFormatter.ofPattern("dd MMM yyyy HH:mm:ss").withZone(ZoneId.systemDefault());
+
     private final String log_file_name;
     private final String peer_name;
+    private volatile Level level;
+
+    // Ring buffer: a slot is free for position p when its sequence is p, and holds the entry for
+    // position p once its sequence is p + 1. Producers claim positions with a CAS on tail, the
+    // writer is the only consumer and owns head.
+    private final AtomicLongArray sequences;
+    private final String[] messages;
+    private final long[] times;
+    private final AtomicLong tail;
+    private long head;
+
+    private FileChannel log_channel;
+    private final Thread writer;
+    private volatile boolean running;
+    private volatile boolean sleeping;                     // Writer found the buffer empty and parks
+
+    // Only used by the writer thread
+    private final StringBuilder batch;
+    private long cached_second;
+    private String cached_time;
 
     public Logger(String peer) {
         peer_name = peer;
@@ -15,14 +54,6 @@ public class Logger {
         String curr_dir = System.getProperty("user.dir");
         String file_name = curr_dir + "/logs/log_peer_" + peer + ".log";
 
-        try {
-            FileOutputStream fos = new FileOutputStream(file_name, true);
-            PrintStream ps = new PrintStream(fos);
-            System.setErr(ps);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
         log_file_name = file_name;
         try {
             File file = new File(log_file_name);
@@ -31,29 +62,156 @@ public class Logger {
                 FileOutputStream fileOutputStream = new FileOutputStream(log_file_name);
                 fileOutputStream.close();
             }
+            // Appending, as System.err writes to the same file
+            log_channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
         } catch (IOException e) {
             System.out.println("An error occurred while initilaizing logger");
             e.printStackTrace();
         }
+
+        level         = Level.INFO;
+        sequences     = new AtomicLongArray(CAPACITY);
+        messages      = new String[CAPACITY];
+        times         = new long[CAPACITY];
+        tail          = new AtomicLong(0);
+        head          = 0;
+        batch         = new StringBuilder(64 * 1024);
+        cached_second = -1;
+        for (int i = 0; i < CAPACITY; i++)
+            sequences.set(i, i);
+
+        running = true;
+        writer  = new Thread(this::WriteLoop, "Logger-" + peer);
+        writer.setDaemon(true);
+        writer.start();
     }
 
-    public void log(String log_string) {
+    // Send System.err to the log file too, done by a peer which has the process to itself
+    public void CaptureStandardError() {
         try {
-            // Add date to each log statement
-            Date currentTime = new Date();
-            SimpleDateFormat dateFormat = new SimpleDateFormat("dd MMM yyyy HH:mm:ss");
-            String formattedTime = dateFormat.format(currentTime);
-            String content = formattedTime + ": Peer " + peer_name + " " + log_string + "\n";
-            System.out.print(content);
+            FileOutputStream fos = new FileOutputStream(log_file_name, true);
+            PrintStream ps = new PrintStream(fos);
+            System.setErr(ps);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
 
+    // Lines below the level are dropped, LogLevel in Common.cfg
+    public void SetLevel(Level level) {
+        this.level = level;
+    }
+
+    public boolean IsEnabled(Level level) {
+        return level.compareTo(this.level) >= 0;
+    }
+
+    public void log(String log_string) {
+        log(Level.INFO, log_string);
+    }
+
+    public void log(Level level, String log_string) {
+        // Nothing is written any more after Close()
+        if (!IsEnabled(level) || !running)
+            return;
+        long time = System.currentTimeMillis();
+        while (true) {
+            long position = tail.get();
+            int slot = (int) position & (CAPACITY - 1);
+            long sequence = sequences.get(slot);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    messages[slot] = log_string;
+                    times[slot]    = time;
+                    // Publishes the entry to the writer
+                    sequences.set(slot, position + 1);
+                    // Wake the writer only if it found the buffer empty. It sets sleeping before
+                    // it checks for an entry once more, so one of the two sees the other.
+                    if (sleeping)
+                        LockSupport.unpark(writer);
+                    return;
+                }
+            } else if (sequence < position) {
+                // Buffer is full, wait for the writer instead of dropping the line
+                LockSupport.unpark(writer);
+                Thread.yield();
+            }
+            // Otherwise another producer claimed the position first, retry with the new tail
+        }
+    }
+
+    private void WriteLoop() {
+        while (running) {
+            if (WriteBatch())
+                continue;
+            for (int i = 0; i < IDLE_SPINS && running && !HasEntry(); i++)
+                Thread.onSpinWait();
+            if (HasEntry())
+                continue;
+            sleeping = true;
+            if (running && !HasEntry())
+                LockSupport.park(this);
+            sleeping = false;
+        }
+        // Drain the lines logged before Close()
+        while (WriteBatch());
+    }
+
+    // True if the entry at head is published
+    private boolean HasEntry() {
+        return sequences.get((int) head & (CAPACITY - 1)) == head + 1;
+    }
+
+    // Write every published entry, returns false if there was none
+    private boolean WriteBatch() {
+        batch.setLength(0);
+        while (batch.length() < 60 * 1024) {
+            int slot = (int) head & (CAPACITY - 1);
+            if (sequences.get(slot) != head + 1)
+                break;
+            batch.append(FormatTime(times[slot])).append(": Peer ").append(peer_name).append(' ').append(messages[slot]).append('\n');
+            messages[slot] = null;
+            // Hands the slot back to the producers for the next round
+            sequences.set(slot, head + CAPACITY);
+            head++;
+        }
+        if (batch.length() == 0)
+            return false;
+        String content = batch.toString();
+        System.out.print(content);
+        try {
             // Write logs to file log_peer_[peer_id].log
-            FileOutputStream fileOutputStream = new FileOutputStream(log_file_name, true);
-            byte[] bytes = content.getBytes();
-            fileOutputStream.write(bytes);
-            fileOutputStream.close();
+            ByteBuffer bytes = ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining())
+                log_channel.write(bytes);
         } catch (Exception e) {
             System.out.println("An error occurred while logging");
             e.printStackTrace();
         }
+        return true;
+    }
+
+    // Timestamps only change once a second, format each second once
+    private String FormatTime(long time) {
+        long second = time / 1000;
+        if (second != cached_second) {
+            cached_second = second;
+            cached_time   = DATE_FORMAT.format(Instant.ofEpochMilli(time));
+        }
+        return cached_time;
+    }
+
+    // Stop the writer once everything logged so far is written. Called by the owner as the last step
+    // of its shutdown, Session.Stop() or the peer's shutdown hook, lines logged later are dropped.
+    public void Close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+            if (log_channel != null)
+                log_channel.close();
+        } catch (InterruptedException | IOException e) {
+            e.printStackTrace();
+        }
     }
-}
\ No newline at end of file
+}
@@ -1,80 +1,117 @@
-import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 
+// Message is a decoded message: the type and a payload which lives in a buffer at payload_offset.
+// Received messages are flyweights over the receive buffer (see FrameDecoder.NextFrame) and are
+// never copied. Outgoing messages are encoded straight into a ByteBuffer with the static Encode
+// methods, without building a Message at all.
 public class Message {
-    private Integer message_length;
-    private Byte message_type;
-    private byte[] message_payload;
+    // 4-byte message length followed by the 1-byte type. The length does not include the length
+    // field itself or the type byte
+    public static final int HEADER_SIZE = 5;
+
+    private MessageType message_type;
+    private ByteBuffer buffer;       // Holds the payload, its position and limit are never changed
+    private int payload_offset;
+    private int message_length;
 
     // Message constructor to initialize message fields
     public Message(MessageType message_type, byte[] message_payload) {
-        this.message_type = MakeMessageType(message_type);
-        this.message_payload = message_payload;
-        // 4-byte message length specifies the message length in bytes. It does not include the 
-        // length of the message length field itself
-        this.message_length = message_payload.length;
+        Reset(message_type, ByteBuffer.wrap(message_payload), 0, message_payload.length);
+    }
+
+    // Message constructor to initialize message fields from a byte array, the payload is not copied
+    public Message(byte[] message) {
+        ByteBuffer frame = ByteBuffer.wrap(message);
+        Reset(MessageType.FromId(frame.get(4)), frame, HEADER_SIZE, frame.getInt(0));
     }
 
-    // Message constructor to initialize message fields from a byte array
-    public Message(byte[] message) {       
-        this.message_length  = ByteBuffer.wrap(Arrays.copyOfRange(message, 0, 4)).getInt();
-        this.message_type    = message[4];
-        this.message_payload = ByteBuffer.wrap(Arrays.copyOfRange(message, 5, 5 + message_length)).array();
+    // Empty flyweight, filled by Reset()
+    Message() {
+    }
+
+    // Point the message at another payload, used by FrameDecoder to decode every frame into one Message
+    Message Reset(MessageType message_type, ByteBuffer buffer, int payload_offset, int message_length) {
+        this.message_type   = message_type;
+        this.buffer         = buffer;
+        this.payload_offset = payload_offset;
+        this.message_length = message_length;
+        return this;
     }
 
     // Returns a byte array of the message
     public byte[] BuildMessageByteArray() {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-            try {
-                // Writing message_length as a byte[] of size 4 since Integer is truncated to 1 byte in Java
-                byte[] messg_len = new byte[4];
-                messg_len = ByteBuffer.allocate(4).putInt(message_length).array();
-                buffer.writeBytes(messg_len);
-                buffer.write(message_type);
-                buffer.writeBytes(message_payload);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        return buffer.toByteArray();
+        byte[] message = new byte[HEADER_SIZE + message_length];
+        ByteBuffer out = ByteBuffer.wrap(message).putInt(message_length).put(message_type.Id());
+        for (int i = 0; i < message_length; i++)
+            out.put(buffer.get(payload_offset + i));
+        return message;
+    }
+
+    // Size of a message with the given payload length on the wire
+    public static int FrameSize(int payload_length) {
+        return HEADER_SIZE + payload_length;
+    }
+
+    // Encode a message without payload (CHOKE, UNCHOKE, INTERESTED, NOTINTERESTED)
+    public static void Encode(ByteBuffer out, MessageType message_type) {
+        out.putInt(0).put(message_type.Id());
+    }
+
+    // Encode a message with a 4-byte payload (HAVE)
+    public static void Encode(ByteBuffer out, MessageType message_type, int value) {
+        out.putInt(4).put(message_type.Id()).putInt(value);
+    }
+
+    // Encode a REQUEST or CANCEL: piece index, offset within the piece and length
+    public static void Encode(ByteBuffer out, MessageType message_type, Block block) {
+        out.putInt(12).put(message_type.Id()).putInt(block.index).putInt(block.offset).putInt(block.length);
+    }
+
+    // Encode a message with an arbitrary payload (BITFIELD)
+    public static void Encode(ByteBuffer out, MessageType message_type, byte[] payload) {
+        out.putInt(payload.length).put(message_type.Id()).put(payload);
+    }
+
+    // Encode the header of a PIECE whose block is sent separately
+    public static void EncodePieceHeader(ByteBuffer out, Block block) {
+        out.putInt(block.length + 8).put(MessageType.PIECE.Id()).putInt(block.index).putInt(block.offset);
     }
 
     // Return the type of the message as an enum
     public MessageType GetMessageType() {
-        switch(message_type) {
-            case 0: return MessageType.CHOKE;
-            case 1: return MessageType.UNCHOKE;
-            case 2: return MessageType.INTERESTED;
-            case 3: return MessageType.NOTINTERESTED;
-            case 4: return MessageType.HAVE;
-            case 5: return MessageType.BITFIELD;
-            case 6: return MessageType.REQUEST;
-            case 7: return MessageType.PIECE;
-            default: return MessageType.UNKNOWN;
-        }
-    }
-
-    public byte MakeMessageType(MessageType message_type) {
-        switch(message_type) {
-            case CHOKE: return (byte) 0;
-            case UNCHOKE: return (byte) 1;
-            case INTERESTED: return (byte) 2;
-            case NOTINTERESTED: return (byte) 3;
-            case HAVE: return (byte) 4;
-            case BITFIELD: return (byte) 5;
-            case REQUEST: return (byte) 6;
-            case PIECE: return (byte) 7;
-            default: return (byte) 10;
-        }
+        return message_type;
     }
 
     // Return the message length field
-    public Integer GetMessageLength() {
+    public int GetMessageLength() {
         return message_length;
     }
 
-    // Return the message payload field
+    // Return a copy of the message payload field
     public byte[] GetMessagePayload() {
+        byte[] message_payload = new byte[message_length];
+        GetPayloadView(0).get(message_payload);
         return message_payload;
     }
-}
\ No newline at end of file
+
+    // Return the payload from the given offset on as a buffer without copying
+    public ByteBuffer GetPayloadView(int offset) {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(payload_offset + message_length).position(payload_offset + offset);
+        return view;
+    }
+
+    public ByteBuffer GetPayloadView() {
+        return GetPayloadView(0);
+    }
+
+    // Read the byte at the given payload offset
+    public byte GetPayloadByte(int offset) {
+        return buffer.get(payload_offset + offset);
+    }
+
+    // Read the 4-byte integer at the given payload offset (piece index of HAVE, REQUEST and PIECE)
+    public int GetPayloadInt(int offset) {
+        return buffer.getInt(payload_offset + offset);
+    }
+}
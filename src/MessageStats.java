@@ -0,0 +1,29 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// MessageStats counts the messages the host sent and received, by type, over all connections
+public class MessageStats {
+    private final AtomicLongArray sent;
+    private final AtomicLongArray received;
+
+    public MessageStats() {
+        int no_of_types = MessageType.values().length;
+        this.sent       = new AtomicLongArray(no_of_types);
+        this.received   = new AtomicLongArray(no_of_types);
+    }
+
+    public void CountSent(MessageType message_type) {
+        sent.incrementAndGet(message_type.ordinal());
+    }
+
+    public void CountReceived(MessageType message_type) {
+        received.incrementAndGet(message_type.ordinal());
+    }
+
+    public long GetSent(MessageType message_type) {
+        return sent.get(message_type.ordinal());
+    }
+
+    public long GetReceived(MessageType message_type) {
+        return received.get(message_type.ordinal());
+    }
+}
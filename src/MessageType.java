@@ -1,4 +1,4 @@
-// An enum of different message types
+// An enum of different message types, the ordinal is the type byte on the wire
 public enum MessageType {
     CHOKE,
     UNCHOKE,
@@ -8,5 +8,18 @@ public enum MessageType {
     BITFIELD,
     REQUEST,
     PIECE,
-    UNKNOWN
-}
\ No newline at end of file
+    CANCEL,
+    UNKNOWN;
+
+    private static final MessageType[] BY_ID = values();
+
+    // Type byte written on the wire
+    public byte Id() {
+        return (byte) ordinal();
+    }
+
+    // Type of a received type byte, UNKNOWN for anything that isn't a message type
+    public static MessageType FromId(int id) {
+        return id >= 0 && id < UNKNOWN.ordinal() ? BY_ID[id] : UNKNOWN;
+    }
+}
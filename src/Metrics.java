@@ -0,0 +1,205 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+// Metrics is the registry of the counters, gauges and histograms of a peer process, written out in
+// the Prometheus text format by MetricsServer and MetricsDumper. Recording never takes a lock:
+// counters are LongAdders and histograms count into fixed log-linear buckets, so the connections
+// can record every block. The lock only guards registering metrics and writing them out.
+//
+// The classes recording a metric own it (e.g. the byte counters of a neighbor are fields of its
+// PeerDetails) and register it under a name and labels, e.g. torrent="123",peer="1002".
+public class Metrics {
+    // Histogram buckets written out, in seconds
+    private static final String[] BUCKET_BOUNDS = { "0.0001", "0.00025", "0.0005", "0.001", "0.0025", "0.005",
+            "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10" };
+
+    private final ReentrantLock lock;
+    private final LinkedHashMap<String, Family> families;  // By name, in the order registered
+
+    // Metrics of one name, by labels: a Counter, a Histogram or a LongSupplier
+    private static class Family {
+        final String help;
+        final String type;  // counter, gauge or histogram
+        final LinkedHashMap<String, Object> metrics = new LinkedHashMap<>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    public static class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void Add(long amount) {
+            value.add(amount);
+        }
+
+        public void Increment() {
+            value.increment();
+        }
+
+        public long Get() {
+            return value.sum();
+        }
+    }
+
+    // Histogram of durations in nanoseconds, HDR style: below 8 ns a bucket per value, above it 8
+    // buckets per power of two, so every value is counted within 12.5% of its size whatever its
+    // range. The bucket of a value is found with a few shifts, no search and no lock.
+    public static class Histogram {
+        private static final int SUB_BUCKETS = 8;
+        private static final int SUB_BUCKET_BITS = 3;
+        private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+        private final LongAdder sum   = new LongAdder();   // Nanoseconds
+
+        public void Record(long nanos) {
+            long value = Math.max(0, nanos);
+            buckets.incrementAndGet(Bucket(value));
+            sum.add(value);
+        }
+
+        // Record the time since start, a System.nanoTime()
+        public void RecordSince(long start) {
+            Record(System.nanoTime() - start);
+        }
+
+        private static int Bucket(long value) {
+            if (value < SUB_BUCKETS)
+                return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub_bucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub_bucket;
+        }
+
+        // Largest value counted in the bucket
+        private static long BucketMax(int bucket) {
+            if (bucket < SUB_BUCKETS)
+                return bucket;
+            int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long sub_bucket = SUB_BUCKETS + bucket % SUB_BUCKETS;
+            return ((sub_bucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+        }
+
+        void Write(StringBuilder out, String name, String labels) {
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            long cumulative = 0;
+            int bucket = 0;
+            for (String bound : BUCKET_BOUNDS) {
+                long bound_nanos = (long) (Double.parseDouble(bound) * 1e9);
+                for (; bucket < buckets.length() && BucketMax(bucket) <= bound_nanos; bucket++)
+                    cumulative += buckets.get(bucket);
+                out.append(name).append("_bucket{").append(prefix).append("le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+            }
+            for (; bucket < buckets.length(); bucket++)
+                cumulative += buckets.get(bucket);
+            out.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+            out.append(name).append("_sum").append(Braces(labels)).append(' ').append(sum.sum() / 1e9).append('\n');
+            out.append(name).append("_count").append(Braces(labels)).append(' ').append(cumulative).append('\n');
+        }
+    }
+
+    public Metrics() {
+        this.lock     = new ReentrantLock();
+        this.families = new LinkedHashMap<>();
+    }
+
+    // Labels in the text format from name, value pairs, e.g. Labels("torrent", 123, "peer", 1002)
+    public static String Labels(Object... names_values) {
+        StringBuilder labels = new StringBuilder();
+        for (int i = 0; i + 1 < names_values.length; i += 2) {
+            if (labels.length() > 0)
+                labels.append(',');
+            String value = String.valueOf(names_values[i + 1]).replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+            labels.append(names_values[i]).append("=\"").append(value).append('"');
+        }
+        return labels.toString();
+    }
+
+    private static String Braces(String labels) {
+        return labels.isEmpty() ? "" : "{" + labels + "}";
+    }
+
+    private void Add(String name, String help, String type, String labels, Object metric) {
+        lock.lock();
+        try {
+            Family family = families.computeIfAbsent(name, key -> new Family(help, type));
+            if (!family.type.equals(type))
+                throw new IllegalArgumentException("Metric " + name + " is a " + family.type + ", not a " + type);
+            family.metrics.put(labels, metric);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void AddCounter(String name, String help, String labels, Counter counter) {
+        Add(name, help, "counter", labels, counter);
+    }
+
+    // A counter kept elsewhere, e.g. in MessageStats, read when the metrics are written out
+    public void AddCounter(String name, String help, String labels, LongSupplier counter) {
+        Add(name, help, "counter", labels, counter);
+    }
+
+    public void AddGauge(String name, String help, String labels, LongSupplier gauge) {
+        Add(name, help, "gauge", labels, gauge);
+    }
+
+    public void AddHistogram(String name, String help, String labels, Histogram histogram) {
+        Add(name, help, "histogram", labels, histogram);
+    }
+
+    // Drop the metrics having this label, e.g. those of a torrent which stopped
+    public void Remove(String label) {
+        lock.lock();
+        try {
+            Iterator<Family> family = families.values().iterator();
+            while (family.hasNext()) {
+                Family metrics = family.next();
+                metrics.metrics.keySet().removeIf(labels -> ("," + labels + ",").contains("," + label + ","));
+                if (metrics.metrics.isEmpty())
+                    family.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // All metrics in the Prometheus text format
+    public String Format() {
+        ArrayList<Map.Entry<String, Family>> snapshot;
+        ArrayList<ArrayList<Map.Entry<String, Object>>> metrics = new ArrayList<>();
+        lock.lock();
+        try {
+            snapshot = new ArrayList<>(families.entrySet());
+            for (Map.Entry<String, Family> family : snapshot)
+                metrics.add(new ArrayList<>(family.getValue().metrics.entrySet()));
+        } finally {
+            lock.unlock();
+        }
+        // Gauges may take locks of their own, they are read without the registry's lock
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < snapshot.size(); i++) {
+            String name = snapshot.get(i).getKey();
+            Family family = snapshot.get(i).getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> metric : metrics.get(i)) {
+                Object value = metric.getValue();
+                if (value instanceof Histogram) {
+                    ((Histogram) value).Write(out, name, metric.getKey());
+                    continue;
+                }
+                long number = value instanceof Counter ? ((Counter) value).Get() : ((LongSupplier) value).getAsLong();
+                out.append(name).append(Braces(metric.getKey())).append(' ').append(number).append('\n');
+            }
+        }
+        return out.toString();
+    }
+}
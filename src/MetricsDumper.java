@@ -0,0 +1,44 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+// MetricsDumper writes the metrics of the session to logs/metrics_peer_<id>.prom every
+// MetricsDumpSeconds, and once more when the session stops. The file is replaced at once, so a
+// reader never sees half of it.
+public class MetricsDumper extends Thread {
+    private final Metrics metrics;
+    private final long interval_ms;
+    private final File dump_file;
+
+    public MetricsDumper(Session session, int interval_seconds) {
+        super("MetricsDumper-" + session.peer_id);
+        this.metrics     = session.metrics;
+        this.interval_ms = 1000L * interval_seconds;
+        this.dump_file   = new File(System.getProperty("user.dir") + "/logs/metrics_peer_" + session.peer_id + ".prom");
+        setDaemon(true);
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                Thread.sleep(interval_ms);
+                Dump();
+            }
+        } catch (InterruptedException e) {
+            // Interrupted when the session stops
+        }
+    }
+
+    public void Dump() {
+        File temp_file = new File(dump_file.getPath() + ".tmp");
+        try {
+            dump_file.getParentFile().mkdirs();
+            Files.write(temp_file.toPath(), metrics.Format().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp_file.toPath(), dump_file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Cannot write " + dump_file + ": " + e);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+// MetricsServer serves the metrics of the session at http://localhost:<MetricsPort>/metrics in the
+// Prometheus text format. It only listens on the loopback address.
+public class MetricsServer {
+    private final HttpServer server;
+
+    public MetricsServer(Metrics metrics, int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = metrics.Format().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+    }
+
+    public void Start() {
+        server.start();
+    }
+
+    public void Stop() {
+        server.stop(0);
+    }
+}
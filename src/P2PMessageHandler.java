@@ -1,305 +1,438 @@
-import static java.lang.System.exit;
-import java.io.DataInputStream;
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.util.Arrays;
-import java.util.BitSet;
-
-public class P2PMessageHandler {
-    peerProcess host_peer;      // Current host
-    PeerDetails neighbor_peer;  // Neighbor peer to which the current TCP is established
-    Boolean chocked_by_host;    // Local choked state for each thread
-    int latest_piece_ptr;       // Local pointer to the pending updates
-    
-    public P2PMessageHandler(peerProcess host_peer, PeerDetails neighbor_peer) {
-        this.host_peer     = host_peer;
-        this.neighbor_peer = neighbor_peer;
-        this.chocked_by_host = true;
-        this.latest_piece_ptr = host_peer.host_details.has_file ? host_peer.no_of_pieces : 0;
-        InitializeNeighBitField();
-    }
-
-    // Initializing neigh bitfield to avoid null ptr exceptions in when no bitfield message is received
-    private void InitializeNeighBitField() {
-        int allocated_bits = (int) Math.ceil((float) host_peer.no_of_pieces/64) * 64;
-        neighbor_peer.bitfield_piece_index = new BitSet(allocated_bits);
-        neighbor_peer.bitfield_piece_index.set(host_peer.no_of_pieces);
-    }
-
-    // Method to handle BitField Message received from Neighbor
-    public void HandleBitFieldMessage(Message message) {
-        // Create an empty bitset of same length as payload
-        BitSet peer_bitset                 = new BitSet(message.GetMessagePayload().length * 8); // 8 bits in a byte
-        // Retrieve the message payload and store it in neighbor_peer object
-        byte[] message_payload             = message.GetMessagePayload();
-        boolean interested                 = false;
-
-        // Set the peer bitfield from bitfield index payload
-        for (int i = 0; i < message.GetMessageLength(); i++) {
-            // Parse each byte of the bitfield message
-            for (int j = 0; j < 8; j++) {
-                if ((message_payload[i] & (1 << j)) != 0) {
-                    peer_bitset.set(i * 8 + j);
-                    // If the peer neighbor has any bits host does not have, flag interested to true
-                    if(peer_bitset.get(i * 8 + j) && !host_peer.host_details.bitfield_piece_index.get(i * 8 + j)) {
-                        interested = true;
-                    }
-                }
-            }
-        }
-
-        // Set neighbor bit field
-        neighbor_peer.bitfield_piece_index = peer_bitset;
-
-        // The neighbor has file already, so mark the thread as complete and increment completed files
-        host_peer.completed_peer_files += 1;
-        host_peer.completed_threads++;
-
-        // Send Interested if the above result is not empty else send NotInterested message
-        MessageType msg_type = interested ? MessageType.INTERESTED : MessageType.NOTINTERESTED;
-
-        // Make third argument in Message as None and avoid sending third argument?
-        Message msg = new Message(msg_type, new byte[1]);
-        Utils.sendMessage(msg.BuildMessageByteArray(), neighbor_peer.out);
-    }
-
-    // Mark as choked by neighbpr
-    public void HandleChokeMessage() {
-        host_peer.choked_by_neighbors.put(neighbor_peer.peer_id, true);
-    }
-
-    public void HandleUnChokeMessage() {
-        host_peer.choked_by_neighbors.put(neighbor_peer.peer_id, false);
-        // Gets next interested index and sends request message, re-requests corrupted messages
-        int interested_index = Utils.GetInterestIndex(host_peer, neighbor_peer);
-        if (interested_index != -1) {
-            Message msg = new Message(MessageType.REQUEST, ByteBuffer.allocate(4).putInt(interested_index).array());
-            Utils.sendMessage(msg.BuildMessageByteArray(), neighbor_peer.out);
-            host_peer.requested_indices.add(interested_index);
-        }else if(host_peer.host_details.bitfield_piece_index.nextClearBit(0) < host_peer.no_of_pieces) {
-            Message messg = new Message(MessageType.REQUEST, ByteBuffer.allocate(4).putInt(host_peer.host_details.bitfield_piece_index.nextClearBit(0)).array());
-            Utils.sendMessage(messg.BuildMessageByteArray(), neighbor_peer.out);
-        }
-    }
-
-    // Mark interested neighbor
-    public void HandleInterestedMessage() {
-        host_peer.neighbors_interested_in_host.put(neighbor_peer.peer_id, true);
-    }
-
-    // Mark not interested neighbor
-    public void HandleNotInterestedMessage() {
-        host_peer.neighbors_interested_in_host.put(neighbor_peer.peer_id, false);
-    }
-
-    // Handler for 'have' message type
-    public void HandleHaveMessage(Message message_received) {
-        int bitfield_index = ByteBuffer.wrap(Arrays.copyOfRange(message_received.GetMessagePayload(), 0, 4)).getInt();;
-        
-        // Update neighbor and check if complete
-        neighbor_peer.bitfield_piece_index.set(bitfield_index);
-        if(Utils.CheckAllPiecesReceived(host_peer.neighbors_list.get(neighbor_peer.peer_id).bitfield_piece_index, host_peer.no_of_pieces)){
-            // If Multiple haves from same neighbor - can cause early termination
-            host_peer.completed_peer_files += 1;
-        }
-
-        // If the all have updates have been sent and host received file, increment thread completed count
-        if(latest_piece_ptr == host_peer.no_of_pieces && host_peer.host_details.has_file && host_peer.completed_peer_files == host_peer.neighbors_list.size()){
-            host_peer.completed_threads++;
-        }
-
-        // Check if interested
-        boolean send_interested = Utils.CheckInterestInIndex(host_peer.host_details, neighbor_peer, bitfield_index);
-
-        MessageType msg_type = send_interested ? MessageType.INTERESTED : MessageType.NOTINTERESTED;
-        Message msg = new Message(msg_type, new byte[0]);
-        Utils.sendMessage(msg.BuildMessageByteArray(), neighbor_peer.out);
-    }
-
-    public void HandleRequestMessage(Message message_received, int index) {
-        // Don't send data when neighbor is choked
-        if (!host_peer.unchoked_by_host.get(neighbor_peer.peer_id) && host_peer.opt_neighbor != neighbor_peer.peer_id)
-            return;
-
-        // Below should not happen as the request is received only if the host has required piece
-        if (!host_peer.host_details.bitfield_piece_index.get(index))
-            return;
-        // Get the requested index in byte format
-        byte[] message_payload = message_received.GetMessagePayload();
-
-        // Pull the required piece
-        byte[] requested_piece = host_peer.file_handler.GetPiece(index);
-
-        // Below is to concatenate index in byte format and the piece
-        byte[] data_payload = new byte[requested_piece.length + message_payload.length];
-
-        ByteBuffer buffer = ByteBuffer.wrap(data_payload);
-        buffer.put(message_payload);
-        buffer.put(requested_piece);
-
-        Message msg = new Message(MessageType.PIECE, buffer.array());
-        Utils.sendMessage(msg.BuildMessageByteArray(), neighbor_peer.out);
-    }
-            
-    public void HandlePieceMessage(Message message_received, int index) throws IOException {                    
-        // Copy the piece and set it in the respective index
-        byte[] piece_payload = Arrays.copyOfRange(message_received.GetMessagePayload(), 4,
-        message_received.GetMessageLength());
-        host_peer.file_handler.SetPiece(index, piece_payload);
-
-        // (Broadcast) Add the piece index into the latest piece shared resource for all threads
-        host_peer.host_details.latest_piece.add(index);
-        host_peer.logger.log("has downloaded the piece " + index + " from " + neighbor_peer.peer_id + ". Now the number of pieces it has is " + host_peer.host_details.latest_piece.size());
-        
-        // Check if all pieces received and build the file
-        if (Utils.CheckAllPiecesReceived(host_peer.host_details.bitfield_piece_index, host_peer.no_of_pieces)) {
-            host_peer.file_handler.BuildFile();
-            host_peer.host_details.has_file = true;
-            host_peer.logger.log("has downloaded the complete file.");
-            return;
-        }
-
-        // Request more pieces
-        int interested_index = Utils.GetInterestIndex(host_peer, neighbor_peer);
-        if (interested_index != -1) {
-            Message messg = new Message(MessageType.REQUEST, ByteBuffer.allocate(4).putInt(interested_index).array());
-            Utils.sendMessage(messg.BuildMessageByteArray(), neighbor_peer.out);
-            host_peer.requested_indices.add(interested_index);
-        } else if(host_peer.host_details.bitfield_piece_index.nextClearBit(0) < host_peer.no_of_pieces) {
-            Message messg = new Message(MessageType.REQUEST, ByteBuffer.allocate(4).putInt(host_peer.host_details.bitfield_piece_index.nextClearBit(0)).array());
-            Utils.sendMessage(messg.BuildMessageByteArray(), neighbor_peer.out);
-        }
-    }
-
-    public void SendUnChokedMessage() {
-        Message msg = new Message(MessageType.UNCHOKE, new byte[1]);
-        Utils.sendMessage(msg.BuildMessageByteArray(), neighbor_peer.out);
-    }
-    
-    public void SendChokedMessage() {
-        Message msg = new Message(MessageType.CHOKE, new byte[1]);
-        Utils.sendMessage(msg.BuildMessageByteArray(), neighbor_peer.out);
-    }
-
-    public void RelayHaveMessages() {
-        // Read the size of global received pieces
-        int n = host_peer.host_details.latest_piece.size();
-        // Get pointer to the next expected piece
-        int i = latest_piece_ptr;
-        while(i < n) {
-            // Send have messages for all the new pieces received
-            Message msg = new Message(MessageType.HAVE, ByteBuffer.allocate(4).putInt(host_peer.host_details.latest_piece.get(i)).array());
-            Utils.sendMessage(msg.BuildMessageByteArray(), neighbor_peer.out);
-            i++;
-        }
-        // Update latest piece pointer
-        latest_piece_ptr = i;
-    }
-    
-    public void CheckTermination() {
-        // If all the threads are complete, terminate      
-        if(host_peer.completed_threads == host_peer.neighbors_list.size()) {
-            exit(0);
-        }
-    }
-
-    private void ProcessMessage(Message message_received) throws IOException {
-        MessageType msg_type = message_received.GetMessageType();
-         switch(msg_type) {
-            case CHOKE: {
-                host_peer.logger.log("is choked by " + neighbor_peer.peer_id);
-                HandleChokeMessage();
-                break;
-            }
-            case UNCHOKE: {
-                host_peer.logger.log("is unchoked by " + neighbor_peer.peer_id);
-                HandleUnChokeMessage();
-                break;
-            }
-            case INTERESTED: {
-                host_peer.logger.log("received the 'interested' message from " + neighbor_peer.peer_id);
-                HandleInterestedMessage();
-                break;
-            }
-            case NOTINTERESTED: {
-                host_peer.logger.log("received 'not interested' message from " + neighbor_peer.peer_id);
-                HandleNotInterestedMessage();
-                break;
-            }
-            case HAVE: {
-                int index = ByteBuffer.wrap(Arrays.copyOfRange(message_received.GetMessagePayload(), 0, 4)).getInt();;
-                host_peer.logger.log("received the 'have' message from " + neighbor_peer.peer_id + " for the piece " + index);
-                HandleHaveMessage(message_received);
-                break;
-            }
-            case BITFIELD: {
-                // host_peer.logger.log("received " + msg_type.toString() + " message from " + neighbor_peer.peer_id);
-                HandleBitFieldMessage(message_received);
-                break;
-            }
-            case REQUEST: {
-                int index = ByteBuffer.wrap(Arrays.copyOfRange(message_received.GetMessagePayload(), 0, 4)).getInt();
-                // host_peer.logger.log("received " + msg_type.toString() + " (" + index + ") message from " + neighbor_peer.peer_id);
-                HandleRequestMessage(message_received, index);
-                break;
-            }
-            case PIECE: {
-                int index = ByteBuffer.wrap(Arrays.copyOfRange(message_received.GetMessagePayload(), 0, 4)).getInt();
-                // host_peer.logger.log("received " + msg_type.toString() + " (" + index + ") message from " + neighbor_peer.peer_id);
-                HandlePieceMessage(message_received, index);
-                break;
-            }
-            default: ;
-        }
-    }
-
-    private void UpdateChokeUnchoke() {
-        // Check if peer is the optimistically choked neighbor
-        boolean is_peer_opt = neighbor_peer.peer_id == host_peer.opt_neighbor;
-
-        // Check if peer is unchoked by host
-        boolean is_peer_unchoked = host_peer.unchoked_by_host.getOrDefault(neighbor_peer.peer_id, false);
-
-        // Check the present choke state in the current thread with global choke state
-        if(chocked_by_host && ( is_peer_unchoked || is_peer_opt )) {
-            chocked_by_host = false;
-            SendUnChokedMessage();
-        } else if(!chocked_by_host && !is_peer_unchoked && !is_peer_opt ) {
-            chocked_by_host = true;
-            SendChokedMessage();
-        }
-    }
-    
-    public void MessageListener() throws IOException {
-        DataInputStream in = neighbor_peer.in;
-        while (true) {
-            
-            // Check if all peers received file and terminates
-            CheckTermination();
-            
-            // Check if the neighbor should be CHOKED or UNCHOKED
-            UpdateChokeUnchoke();
-            
-            // Check for any new pieces received
-            if(latest_piece_ptr < host_peer.host_details.latest_piece.size()) {
-                RelayHaveMessages();
-            }
-
-            // Receive message and retrieve the message type
-            if(in.available() != 0) {
-                int bytes_available = in.available();
-                byte[] recvd_message = new byte[bytes_available];
-                in.read(recvd_message);
-
-                // Parse the input stream for messages
-                for(int i = 0; i < bytes_available;) {
-                    int curr_msg_len = ByteBuffer.wrap(Arrays.copyOfRange(recvd_message, i, i + 4)).getInt();
-                    Message curr_messg = new Message(ByteBuffer.wrap(Arrays.copyOfRange(recvd_message, i, i + 5 + curr_msg_len)).array());
-                    // Take Action based on message type received
-                    ProcessMessage(curr_messg);
-                    i += 5 + curr_msg_len;
-                }
-            }
-        }
-    }
-}
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+
+public class P2PMessageHandler {
+    peerProcess host_peer;      // Current host
+    PeerDetails neighbor_peer;  // Neighbor peer to which the current TCP is established
+    Boolean chocked_by_host;    // Local choked state for each thread
+    int latest_piece_ptr;       // Local pointer to the pending updates
+    HashSet<Block> outstanding_requests;   // Blocks requested from this neighbor and not received yet
+    HashMap<Block, Long> request_times;    // System.nanoTime() each outstanding request was sent, for the request latency
+    int max_outstanding_requests;          // Pipeline depth in blocks, MaxOutstandingRequests in Common.cfg
+    int block_size;                        // Biggest block served, BlockSize in Common.cfg
+    boolean requests_paced;                // Requests wait for the download limits or the disk writer, a FillRequestPipeline() is scheduled
+    int last_requested_piece;              // Piece of the neighbor's last REQUEST, to detect a sequential requester
+    int read_ahead;                        // Pieces loaded into the cache ahead of a sequential requester, PieceCacheReadAhead
+
+    public P2PMessageHandler(peerProcess host_peer, PeerDetails neighbor_peer, int have_cursor) {
+        this.host_peer     = host_peer;
+        this.neighbor_peer = neighbor_peer;
+        this.chocked_by_host = true;
+        this.latest_piece_ptr = have_cursor;
+        this.outstanding_requests = new HashSet<>();
+        this.request_times = new HashMap<>();
+        this.max_outstanding_requests = Integer.parseInt(host_peer.config_params.getOrDefault("MaxOutstandingRequests", "5"));
+        this.block_size = Integer.parseInt(host_peer.config_params.getOrDefault("BlockSize", "16384"));
+        this.last_requested_piece = -1;
+        this.read_ahead = Integer.parseInt(host_peer.config_params.getOrDefault("PieceCacheReadAhead", "4"));
+        InitializeNeighBitField();
+    }
+
+    // Initializing neigh bitfield to avoid null ptr exceptions in when no bitfield message is received
+    private void InitializeNeighBitField() {
+        neighbor_peer.bitfield_piece_index = new PieceBitfield(host_peer.no_of_pieces);
+    }
+
+    // Method to handle BitField Message received from Neighbor
+    public void HandleBitFieldMessage(Message message) {
+        // Decode the payload a word at a time into a bitset of the host's bitfield length, extra
+        // payload bits are ignored
+        PieceBitfield peer_bitset = PieceBitfield.FromBytes(message.GetPayloadView(), host_peer.no_of_pieces);
+        // Interested if the neighbor has any piece the host does not have
+        boolean interested = peer_bitset.HasPieceNotIn(host_peer.host_details.bitfield_piece_index);
+
+        // Set neighbor bit field and update the piece availability
+        host_peer.piece_picker.RemovePeer(neighbor_peer.bitfield_piece_index);
+        neighbor_peer.bitfield_piece_index = peer_bitset;
+        host_peer.piece_picker.AddPeer(peer_bitset);
+
+        // A neighbor having the file already is complete. A neighbor resuming a download sends the
+        // pieces it has so far.
+        if (Utils.CheckAllPiecesReceived(peer_bitset))
+            host_peer.NeighborCompleted(neighbor_peer);
+
+        // Send Interested if the above result is not empty else send NotInterested message
+        MessageType msg_type = interested ? MessageType.INTERESTED : MessageType.NOTINTERESTED;
+        neighbor_peer.connection.Send(msg_type);
+    }
+
+    // Mark as choked by neighbor, the neighbor drops our pending requests so hand them to other neighbors
+    public void HandleChokeMessage() {
+        host_peer.choked_by_neighbors.Set(neighbor_peer.peer_id, true);
+        ReleaseOutstandingRequests();
+    }
+
+    public void HandleUnChokeMessage() {
+        host_peer.choked_by_neighbors.Set(neighbor_peer.peer_id, false);
+        FillRequestPipeline();
+    }
+
+    // Keep up to max_outstanding_requests requests in flight while the neighbor unchokes the host
+    public void FillRequestPipeline() {
+        if (host_peer.choked_by_neighbors.Is(neighbor_peer.peer_id) || host_peer.host_details.has_file
+                || !neighbor_peer.connection.IsOpen())
+            return;
+        while (outstanding_requests.size() < max_outstanding_requests) {
+            if (!AdmitRequest())
+                return;
+            // Gets next interested block and sends request message
+            Block interested_block = Utils.GetInterestBlock(host_peer, neighbor_peer);
+            if (interested_block == null)
+                break;
+            outstanding_requests.add(interested_block);
+            SendRequestMessage(interested_block);
+        }
+        if (outstanding_requests.size() == max_outstanding_requests || !host_peer.piece_picker.InEndgame())
+            return;
+
+        // Endgame: the remaining blocks are all in flight, request them from this neighbor as well
+        if (host_peer.piece_picker.EnterEndgame()) {
+            host_peer.logger.log("has entered endgame mode");
+            host_peer.BroadcastFillRequestPipeline();
+        }
+        while (outstanding_requests.size() < max_outstanding_requests) {
+            if (!AdmitRequest())
+                return;
+            Block endgame_block = host_peer.piece_picker.PickEndgame(neighbor_peer.bitfield_piece_index, outstanding_requests);
+            if (endgame_block == null)
+                break;
+            outstanding_requests.add(endgame_block);
+            SendRequestMessage(endgame_block);
+        }
+    }
+
+    // The download limits (MaxDownloadRate, MaxDownloadRatePerPeer) are kept by pacing the requests:
+    // a block is only requested once the limits have room for it, else the pipeline is filled again
+    // when they will. The neighbor then sends no faster than the limits, nothing blocks meanwhile.
+    // Requests also wait while the disk writer has MaxWriteBehindBytes to write.
+    private boolean AdmitRequest() {
+        if (requests_paced)
+            return false;
+        if (!host_peer.session.disk_writer.HasRoom()) {
+            requests_paced = true;
+            host_peer.session.disk_writer.WhenRoom(() -> neighbor_peer.connection.Execute(() -> {
+                requests_paced = false;
+                FillRequestPipeline();
+            }));
+            return false;
+        }
+        long delay = host_peer.DownloadDelay(neighbor_peer);
+        if (delay <= 0)
+            return true;
+        requests_paced = true;
+        neighbor_peer.connection.Schedule(() -> {
+            requests_paced = false;
+            FillRequestPipeline();
+        }, Math.min(delay, TokenBucket.MAX_WAIT_NANOS));
+        return false;
+    }
+
+    // The block was received from another neighbor, cancel the duplicate endgame request
+    public void CancelRequest(Block block) {
+        if (outstanding_requests.remove(block)) {
+            request_times.remove(block);
+            neighbor_peer.connection.Send(MessageType.CANCEL, block);
+        }
+    }
+
+    // Connection closed, its requests will not be answered and its pieces are no longer available
+    public void HandleDisconnect() {
+        host_peer.piece_picker.RemovePeer(neighbor_peer.bitfield_piece_index);
+        ReleaseOutstandingRequests();
+    }
+
+    // Forget the pending requests to this neighbor and let the other connections request those pieces
+    public void ReleaseOutstandingRequests() {
+        if (outstanding_requests.isEmpty())
+            return;
+        for (Block block : outstanding_requests)
+            host_peer.piece_picker.Release(block);
+        outstanding_requests.clear();
+        request_times.clear();
+        host_peer.BroadcastFillRequestPipeline();
+    }
+
+    private void SendRequestMessage(Block block) {
+        host_peer.TakeDownload(neighbor_peer, block.length);
+        request_times.put(block, System.nanoTime());
+        neighbor_peer.connection.Send(MessageType.REQUEST, block);
+    }
+
+    // Mark interested neighbor
+    public void HandleInterestedMessage() {
+        host_peer.neighbors_interested_in_host.Set(neighbor_peer.peer_id, true);
+    }
+
+    // Mark not interested neighbor
+    public void HandleNotInterestedMessage() {
+        host_peer.neighbors_interested_in_host.Set(neighbor_peer.peer_id, false);
+    }
+
+    // Handler for 'have' message type
+    public void HandleHaveMessage(Message message_received) {
+        int bitfield_index = message_received.GetPayloadInt(0);
+        
+        // Update neighbor and the piece availability, check if complete
+        if (neighbor_peer.bitfield_piece_index.Set(bitfield_index)) {
+            host_peer.piece_picker.PeerHas(bitfield_index);
+            // Only a new piece can complete the neighbor
+            if(Utils.CheckAllPiecesReceived(neighbor_peer.bitfield_piece_index)){
+                host_peer.NeighborCompleted(neighbor_peer);
+            }
+        }
+
+        // Check if interested
+        boolean send_interested = Utils.CheckInterestInIndex(host_peer.host_details, neighbor_peer, bitfield_index);
+
+        MessageType msg_type = send_interested ? MessageType.INTERESTED : MessageType.NOTINTERESTED;
+        neighbor_peer.connection.Send(msg_type);
+
+        // The new piece may let us top up the pipeline
+        if (send_interested)
+            FillRequestPipeline();
+    }
+
+    public void HandleRequestMessage(Block block) {
+        // Don't send data when neighbor is choked
+        if (!host_peer.unchoked_by_host.Is(neighbor_peer.peer_id) && host_peer.opt_neighbor != neighbor_peer.peer_id)
+            return;
+
+        // Below should not happen as the request is received only if the host has required piece
+        if (block.index < 0 || block.index >= host_peer.no_of_pieces || !host_peer.host_details.bitfield_piece_index.Get(block.index))
+            return;
+        // Drop requests outside the piece or bigger than a block. Written without offset + length,
+        // which a forged offset near Integer.MAX_VALUE would overflow past the check.
+        if (block.offset < 0 || block.length <= 0 || block.length > block_size
+                || block.offset > host_peer.file_handler.GetPieceLength(block.index) - block.length)
+            return;
+        FileChannel file_channel = host_peer.file_handler.GetFileChannel();
+        long position = host_peer.file_handler.GetPieceOffset(block.index) + block.offset;
+        PieceCache piece_cache = host_peer.session.piece_cache;
+        if (piece_cache == null) {
+            neighbor_peer.connection.SendPiece(block, file_channel, position, null);
+            return;
+        }
+        // A neighbor moving on to the next piece reads the file in order, load the pieces it will
+        // request next
+        if (block.index != last_requested_piece) {
+            if (block.index == last_requested_piece + 1)
+                piece_cache.ReadAhead(host_peer, block.index + 1, read_ahead);
+            last_requested_piece = block.index;
+        }
+        ByteBuffer piece = piece_cache.Get(host_peer.content_id, block.index);
+        if (piece != null) {
+            neighbor_peer.connection.SendPiece(block, file_channel, position, piece.duplicate().limit(block.offset + block.length).position(block.offset).slice());
+            return;
+        }
+        // Stream the block straight from the file while the piece is loaded for the next requests
+        piece_cache.Load(host_peer, block.index);
+        neighbor_peer.connection.SendPiece(block, file_channel, position, null);
+    }
+            
+    public void HandlePieceMessage(Message message_received, Block block) throws IOException {
+        // Count every block the neighbor delivers, the choker ranks neighbors on this rate
+        neighbor_peer.download_rate.Add(block.length);
+        neighbor_peer.bytes_received.Add(block.length);
+        neighbor_peer.pieces_received.Increment();
+        // Only accept blocks still requested from this neighbor, a late block for a released or
+        // cancelled request may already have come from another neighbor
+        if (!outstanding_requests.remove(block)) {
+            FillRequestPipeline();
+            return;
+        }
+        Long requested = request_times.remove(block);
+        if (requested != null)
+            host_peer.request_latency.RecordSince(requested);
+
+        // Queue the first copy of the block for the disk writer, it is written to its offset in the
+        // file behind the network thread. Endgame duplicates are dropped.
+        PiecePicker.BlockStatus status = host_peer.host_details.bitfield_piece_index.Get(block.index) ? PiecePicker.BlockStatus.DUPLICATE
+                : host_peer.piece_picker.BlockReceived(block, neighbor_peer.peer_id);
+        if (status != PiecePicker.BlockStatus.DUPLICATE) {
+            host_peer.session.disk_writer.Write(host_peer.file_handler, block.index, block.offset, message_received.GetPayloadView(8));
+            // Other neighbors were asked for the same block in endgame, cancel those requests
+            if (host_peer.piece_picker.IsEndgame())
+                host_peer.BroadcastCancel(block, neighbor_peer.peer_id);
+            if (status == PiecePicker.BlockStatus.LAST_BLOCK) {
+                // The last block of the piece, once its blocks are written verify the piece on the
+                // worker pool before it is announced
+                int index = block.index;
+                host_peer.session.disk_writer.WhenWritten(host_peer.file_handler, index, () -> {
+                    if (host_peer.piece_verifier == null)
+                        CommitPiece(index);
+                    else
+                        host_peer.piece_verifier.Submit(index, host_peer.file_handler, this);
+                }, () -> RetryPiece(index));
+            }
+        }
+
+        // Request more blocks to refill the pipeline
+        FillRequestPipeline();
+    }
+
+    // Mark a completely written (and verified) piece in the bitfield and announce it. Runs on a
+    // DiskWriter thread, or on a PieceVerifier worker when the pieces are verified.
+    public void CommitPiece(int index) {
+        // Another neighbor's copy of the piece may have been committed first
+        if (!host_peer.file_handler.SetPiece(index))
+            return;
+        host_peer.piece_picker.PieceReceived(index);
+
+        // (Broadcast) Add the piece index into the latest piece shared resource for all threads
+        host_peer.have_log.Append(index);
+        host_peer.BroadcastHave();
+        host_peer.logger.log("has downloaded the piece " + index + " from " + neighbor_peer.peer_id + ". Now the number of pieces it has is " + host_peer.have_log.Size());
+        
+        // Check if all pieces received, the file is already complete on disk
+        if (Utils.CheckAllPiecesReceived(host_peer.host_details.bitfield_piece_index)) {
+            host_peer.completion_time = System.nanoTime();
+            host_peer.host_details.has_file = true;
+            host_peer.logger.log("has downloaded the complete file.");
+            host_peer.CheckSwarmCompletion();
+        }
+    }
+
+    // A block of the piece could not be written, download all its blocks again. Unlike RejectPiece
+    // the neighbors are not to blame.
+    public void RetryPiece(int index) {
+        host_peer.piece_picker.PieceFailed(index);
+        host_peer.BroadcastFillRequestPipeline();
+    }
+
+    // The piece didn't match the manifest: all its blocks are requested again, from any neighbor
+    // having it, and a neighbor is disconnected once it contributed to MaxCorruptPieces corrupt pieces
+    public void RejectPiece(int index) {
+        HashSet<Integer> sources = new HashSet<>();
+        for (int peer_id : host_peer.piece_picker.PieceFailed(index))
+            sources.add(peer_id);
+        for (int peer_id : sources) {
+            PeerDetails source = host_peer.neighbors_list.get(peer_id);
+            if (source == null)
+                continue;
+            int corrupt_pieces = source.corrupt_pieces.incrementAndGet();
+            host_peer.logger.log(Logger.Level.WARN, "received a corrupt piece " + index + " from " + peer_id);
+            if (host_peer.IsBanned(source)) {
+                host_peer.logger.log(Logger.Level.WARN, "disconnects from Peer " + peer_id + " after " + corrupt_pieces + " corrupt pieces");
+                PeerConnection connection = source.connection;
+                if (connection != null)
+                    connection.Execute(connection::Close);
+            }
+        }
+        host_peer.BroadcastFillRequestPipeline();
+    }
+
+    public void SendUnChokedMessage() {
+        neighbor_peer.connection.Send(MessageType.UNCHOKE);
+    }
+    
+    public void SendChokedMessage() {
+        neighbor_peer.connection.Send(MessageType.CHOKE);
+        // A choked neighbor forgets its requests, the blocks would arrive unrequested
+        neighbor_peer.connection.DropQueuedPieces();
+    }
+
+    public void RelayHaveMessages() {
+        // Send have messages for all the pieces published after this neighbor's cursor
+        int index;
+        while ((index = host_peer.have_log.Get(latest_piece_ptr)) != -1) {
+            neighbor_peer.connection.Send(MessageType.HAVE, index);
+            latest_piece_ptr++;
+        }
+    }
+
+    // True if the payload has the length its type needs: the piece index of a HAVE, index, offset
+    // and length of a REQUEST or CANCEL, index and offset ahead of the block of a PIECE. Anything
+    // shorter would be read past the end of the frame.
+    private static boolean HasValidLength(Message message) {
+        int length = message.GetMessageLength();
+        switch (message.GetMessageType()) {
+            case HAVE:    return length == 4;
+            case REQUEST:
+            case CANCEL:  return length == 12;
+            case PIECE:   return length >= 8;
+            default:      return true;
+        }
+    }
+
+    // A malformed frame throws, the connection closes the same as on a read error
+    void ProcessMessage(Message message_received) throws IOException {
+        MessageType msg_type = message_received.GetMessageType();
+        if (!HasValidLength(message_received)) {
+            host_peer.logger.log(Logger.Level.WARN, "disconnects from Peer " + neighbor_peer.peer_id + " after a " + msg_type
+                    + " message with a payload of " + message_received.GetMessageLength() + " bytes");
+            throw new IOException("Malformed " + msg_type + " message from Peer " + neighbor_peer.peer_id);
+        }
+         switch(msg_type) {
+            case CHOKE: {
+                host_peer.logger.log("is choked by " + neighbor_peer.peer_id);
+                HandleChokeMessage();
+                break;
+            }
+            case UNCHOKE: {
+                host_peer.logger.log("is unchoked by " + neighbor_peer.peer_id);
+                HandleUnChokeMessage();
+                break;
+            }
+            case INTERESTED: {
+                host_peer.logger.log("received the 'interested' message from " + neighbor_peer.peer_id);
+                HandleInterestedMessage();
+                break;
+            }
+            case NOTINTERESTED: {
+                host_peer.logger.log("received 'not interested' message from " + neighbor_peer.peer_id);
+                HandleNotInterestedMessage();
+                break;
+            }
+            case HAVE: {
+                int index = message_received.GetPayloadInt(0);
+                host_peer.logger.log("received the 'have' message from " + neighbor_peer.peer_id + " for the piece " + index);
+                HandleHaveMessage(message_received);
+                break;
+            }
+            case BITFIELD: {
+                // host_peer.logger.log("received " + msg_type.toString() + " message from " + neighbor_peer.peer_id);
+                HandleBitFieldMessage(message_received);
+                break;
+            }
+            case REQUEST: {
+                Block block = new Block(message_received.GetPayloadInt(0), message_received.GetPayloadInt(4), message_received.GetPayloadInt(8));
+                // host_peer.logger.log("received " + msg_type.toString() + " (" + block + ") message from " + neighbor_peer.peer_id);
+                HandleRequestMessage(block);
+                break;
+            }
+            case CANCEL: {
+                // Drop the PIECE if it is still waiting in the write queue
+                neighbor_peer.connection.CancelPiece(message_received.GetPayloadInt(0), message_received.GetPayloadInt(4));
+                break;
+            }
+            case PIECE: {
+                // PIECE payload: piece index, offset within the piece and the block
+                Block block = new Block(message_received.GetPayloadInt(0), message_received.GetPayloadInt(4), message_received.GetMessageLength() - 8);
+                // host_peer.logger.log("received " + msg_type.toString() + " (" + block + ") message from " + neighbor_peer.peer_id);
+                HandlePieceMessage(message_received, block);
+                break;
+            }
+            default: ;
+        }
+    }
+
+    void UpdateChokeUnchoke() {
+        // Check if peer is the optimistically choked neighbor
+        boolean is_peer_opt = neighbor_peer.peer_id == host_peer.opt_neighbor;
+
+        // Check if peer is unchoked by host
+        boolean is_peer_unchoked = host_peer.unchoked_by_host.Is(neighbor_peer.peer_id);
+
+        // Check the present choke state in the current thread with global choke state
+        if(chocked_by_host && ( is_peer_unchoked || is_peer_opt )) {
+            chocked_by_host = false;
+            SendUnChokedMessage();
+        } else if(!chocked_by_host && !is_peer_unchoked && !is_peer_opt ) {
+            chocked_by_host = true;
+            SendChokedMessage();
+        }
+    }
+}
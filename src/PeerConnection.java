@@ -0,0 +1,121 @@
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+// PeerConnection owns the SocketChannel to one neighbor. All message handling for the connection
+// runs in the connection's context, one task at a time: other threads hand work to it through
+// Execute() instead of touching the P2PMessageHandler directly. ConnectionMode in Common.cfg picks
+// the implementation, SelectorConnection (an EventLoop serves many connections) or
+// VirtualThreadConnection (blocking reads and writes on threads of their own). A connection is
+// created by the Session and belongs to the torrent (host_peer) its handshake is for.
+public abstract class PeerConnection {
+    protected peerProcess host_peer;                    // Set by Bind() before the handshake is sent
+    protected final SocketChannel channel;
+    private final HandshakeListener handshake_listener;
+    protected final FrameDecoder frame_decoder;         // Reassembles messages split across reads
+    protected final long max_queued_piece_bytes;        // Queued PIECE bytes above which no more REQUESTs are read
+    private boolean handshake_received;
+    P2PMessageHandler message_handler;                  // Created once the handshake is verified
+
+    protected PeerConnection(Session session, SocketChannel channel, HandshakeListener handshake_listener) throws IOException {
+        this.channel            = channel;
+        this.handshake_listener = handshake_listener;
+        this.handshake_received = false;
+
+        // Sized for a PIECE until Bind() sets the size of the biggest message of the torrent
+        int block_size     = Integer.parseInt(session.config_params.getOrDefault("BlockSize", "16384"));
+        this.frame_decoder = new FrameDecoder(block_size + 13);
+        this.max_queued_piece_bytes = Long.parseLong(session.config_params.getOrDefault("MaxQueuedPieceBytes", "1048576"));
+
+        // A PIECE header and its body are written separately, don't let Nagle hold back the body
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    }
+
+    // Start listening for the neighbor's handshake
+    public abstract void Register();
+
+    // Run the task in the connection's context; runs inline if already in it
+    public abstract void Execute(Runnable task);
+
+    // Run the task in the connection's context after delay_nanos, used to pace transfers
+    public abstract void Schedule(Runnable task, long delay_nanos);
+
+    // Queue the raw bytes (the handshake)
+    public abstract void Send(byte[] msg);
+
+    // Send a message without payload (CHOKE, UNCHOKE, INTERESTED, NOTINTERESTED)
+    public abstract void Send(MessageType message_type);
+
+    // Send a message with a 4-byte payload (HAVE)
+    public abstract void Send(MessageType message_type, int value);
+
+    // Send a REQUEST or CANCEL for a block
+    public abstract void Send(MessageType message_type, Block block);
+
+    // Send a message with an arbitrary payload (BITFIELD)
+    public abstract void Send(MessageType message_type, byte[] payload);
+
+    // Queue a PIECE message whose block is sent from data, the block in the piece cache, or straight
+    // from the file when data is null
+    public abstract void SendPiece(Block block, FileChannel file_channel, long position, ByteBuffer data);
+
+    // Remove a queued PIECE the neighbor no longer wants, unless it is already partly written
+    public abstract void CancelPiece(int index, int offset);
+
+    // Remove the queued PIECEs not started yet, the neighbor drops its requests when choked
+    public abstract void DropQueuedPieces();
+
+    // Block bytes of the PIECEs waiting in the send queue, for the metrics
+    public abstract long GetQueuedPieceBytes();
+
+    // Relay the pending HAVEs and close the connection once everything queued is written, used when
+    // the peer shuts down
+    public abstract void CloseGracefully();
+
+    public abstract void Close();
+
+    // The connection is for host_peer: called before sending the handshake by PeerClient, and once
+    // the handshake says which torrent it is for by PeerServer
+    public void Bind(peerProcess host_peer) {
+        this.host_peer = host_peer;
+        // Biggest valid message is a PIECE with a whole block or the BITFIELD
+        int block_size = Integer.parseInt(host_peer.config_params.getOrDefault("BlockSize", "16384"));
+        frame_decoder.SetMaxFrameSize(Math.max(block_size + 8, host_peer.no_of_pieces / 8 + 1) + 5);
+    }
+
+    // Called after the handshake is verified, messages from now on are handled by P2PMessageHandler.
+    // Pieces from have_cursor on in the HaveLog were not in the BITFIELD and are relayed as HAVE.
+    public void Attach(PeerDetails neighbor_peer, int have_cursor) {
+        message_handler          = new P2PMessageHandler(host_peer, neighbor_peer, have_cursor);
+        neighbor_peer.connection = this;
+        // Bring the neighbor up to date with the current choke state and pieces received so far
+        message_handler.UpdateChokeUnchoke();
+        message_handler.RelayHaveMessages();
+    }
+
+    public boolean IsOpen() {
+        return channel.isOpen();
+    }
+
+    // Handle what the last read brought in, in the connection's context
+    protected void HandleReceived() throws IOException {
+        // First 32 bytes on every connection are the handshake
+        if (!handshake_received) {
+            byte[] hand_shake_rcv = new byte[32];
+            if (!frame_decoder.Consume(hand_shake_rcv))
+                return;
+            handshake_received = true;
+            handshake_listener.HandleHandshake(this, hand_shake_rcv);
+        }
+
+        // Handle every complete message, a partial message stays in the decoder for the next read
+        Message curr_messg;
+        while (message_handler != null && channel.isOpen() && (curr_messg = frame_decoder.NextFrame()) != null) {
+            // Take Action based on message type received
+            host_peer.message_stats.CountReceived(curr_messg.GetMessageType());
+            message_handler.ProcessMessage(curr_messg);
+        }
+    }
+}
@@ -1,31 +1,33 @@
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.net.Socket;
-import java.util.ArrayList;
-import java.util.BitSet;
-
-public class PeerDetails {
-    public String hostname; // hostname of the peer
-    public Boolean has_file; // True if the peer has complete file else False
-    public int peer_id, peer_port; // Peer ID and port of the peer
-    public BitSet bitfield_piece_index; // BitField of the peer
-    public ArrayList<Integer> latest_piece;
-    Socket socket; // Socket through which current host connected to this peer
-    DataOutputStream out; // Socket's DataOutputStream
-    DataInputStream in; // Socket's DataInputStream
-
-    // Stores the initial details pulled from peerInfo.cfg file
-    public PeerDetails(String line) {
-        String[] line_split = line.split(" ");
-        try {
-            peer_id   = Integer.parseInt(line_split[0]);
-            hostname  = line_split[1];
-            peer_port = Integer.parseInt(line_split[2]);
-            has_file  = line_split[3].equals("1");
-            latest_piece = new ArrayList<>();
-        }
-        catch (Exception ex) {
-            System.out.println(ex.toString());
-        }
-    }
-}
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PeerDetails {
+    public String hostname; // hostname of the peer
+    public volatile boolean has_file; // True if the peer has complete file else False
+    public int peer_id, peer_port; // Peer ID and port of the peer
+    public volatile PieceBitfield bitfield_piece_index; // BitField of the peer
+    volatile PeerConnection connection; // Connection through which current host connected to this peer
+    public final RateMeter download_rate = new RateMeter(0.5); // Piece bytes received from this peer
+    public final RateMeter upload_rate   = new RateMeter(0.5); // Piece bytes sent to this peer
+    public final TokenBucket download_limit = new TokenBucket(0); // MaxDownloadRatePerPeer, paces the requests to this peer
+    public final TokenBucket upload_limit   = new TokenBucket(0); // MaxUploadRatePerPeer, paces the pieces sent to this peer
+    public final AtomicInteger corrupt_pieces = new AtomicInteger(0); // Pieces from this peer that failed verification
+    // Totals for the metrics, registered by peerProcess.RegisterMetrics
+    public final Metrics.Counter bytes_received  = new Metrics.Counter(); // Block bytes received from this peer
+    public final Metrics.Counter bytes_sent      = new Metrics.Counter(); // Block bytes sent to this peer
+    public final Metrics.Counter pieces_received = new Metrics.Counter(); // PIECE messages received from this peer
+    public final Metrics.Counter pieces_sent     = new Metrics.Counter(); // PIECE messages sent to this peer
+
+    // Stores the initial details pulled from peerInfo.cfg file
+    public PeerDetails(String line) {
+        String[] line_split = line.split(" ");
+        try {
+            peer_id   = Integer.parseInt(line_split[0]);
+            hostname  = line_split[1];
+            peer_port = Integer.parseInt(line_split[2]);
+            has_file  = line_split[3].equals("1");
+        }
+        catch (Exception ex) {
+            System.out.println(ex.toString());
+        }
+    }
+}
@@ -1,114 +1,86 @@
-import java.net.*;
-import java.io.*;
-
-public class PeerServer extends Thread {
-
-    private peerProcess host_peer;
-    private PeerDetails neighbor_peer;
-
-    // Peer server constructor 
-    public PeerServer(peerProcess host_peer) {
-        this.host_peer = host_peer;
-    }
-    public void run() {
-        ServerSocket listener = null;
-
-        // listen and accept connection requests
-        try {
-            listener = new ServerSocket(host_peer.host_details.peer_port);
-            while(true) {
-                // Start a handler for the incoming connection
-                new Handler(listener.accept()).start();
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        } finally {
-            try {
-                listener.close();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        }
-
-    }
-
-    /**
-     * A handler thread class.  Handlers are spawned from the listening
-     * loop and are responsible for dealing with a single client's requests.
-     */
-    private class Handler extends Thread {
-        private byte[] hand_shake_rcv;    //message received from the client
-        private Socket connection;
-        private DataInputStream in;	//stream read from the socket
-        private DataOutputStream out;    //stream write to the socket
-
-        public Handler(Socket connection) {
-            this.connection     = connection;
-            this.hand_shake_rcv = new byte[32];
-        }
-
-        public void run() {
-            try{
-                //initialize Input and Output streams
-                out = new DataOutputStream(connection.getOutputStream());
-                out.flush();
-                in = new DataInputStream(connection.getInputStream());
-                try{
-                    while(true)
-                    {
-                        // Receive handshake from client
-                        in.read(hand_shake_rcv);
-                        Integer client_peer_id = Integer.valueOf(new String(hand_shake_rcv).substring(28));
-                        
-                        // If Handshake verification gets field, then break
-                        HandShake hand_shake_msg = new HandShake(host_peer.peer_id);
-                        if (!hand_shake_msg.VerifyHandShakeMessage(hand_shake_rcv))
-                            break;
-                        
-                        host_peer.logger.log("is connected from Peer " + client_peer_id);
-                        neighbor_peer = host_peer.neighbors_list.get(client_peer_id);
-                        // Save the socket, out and in details in neighbor_peer object to use it later
-                        neighbor_peer.socket = connection;
-                        neighbor_peer.out    = out;
-                        neighbor_peer.in     = in;
-
-                        // host_peer.neighbors_list.put(neighbor_peer.peer_id, neighbor_peer);
-
-                        // Send handshake to client
-                        Utils.sendMessage(hand_shake_msg.BuildHandshakeMessage(), out);
-                        
-                        // If server has file, send bitfield to client
-                        if(host_peer.host_details.has_file) {
-                            Message bit_field_message = new Message(MessageType.BITFIELD, host_peer.host_details.bitfield_piece_index.toByteArray());
-                            Utils.sendMessage(bit_field_message.BuildMessageByteArray(), out);
-                        }
-                        
-
-                        // Create a P2PMessageHandler for each of the TCP Connections which will be responsible
-                        // to listen and handle all type of messages
-                        P2PMessageHandler message_handler = new P2PMessageHandler(host_peer, neighbor_peer);
-                        message_handler.MessageListener();
-                    }
-                }
-                catch(Exception classnot){
-                    System.err.println("Data received in unknown format");
-                    classnot.printStackTrace();
-                }
-            }
-            catch(IOException ioException){
-                System.out.println("Disconnect with Client ");
-            }
-            finally{
-                //Close connections
-                try{
-                    in.close();
-                    out.close();
-                    connection.close();
-                }
-                catch(IOException ioException){
-                    System.out.println("Disconnect with Client ");
-                }
-            }
-        }
-    }
-}
+import java.net.*;
+import java.io.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+public class PeerServer extends Thread {
+
+    private Session session;
+    private final ServerSocketChannel listener;
+
+    // Peer server constructor, binds the port right away so that neighbors started later can connect.
+    // One server accepts the connections of every torrent of the session.
+    public PeerServer(Session session, int port) throws IOException {
+        this.session  = session;
+        this.listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(port));
+    }
+
+    public void run() {
+        // listen and accept connection requests
+        try {
+            Handler handler = new Handler();
+            while(true) {
+                // Hand the incoming connection to an event loop or its own tasks, which wait for the handshake
+                SocketChannel connection = listener.accept();
+                session.NewConnection(connection, handler).Register();
+            }
+        } catch (ClosedChannelException e) {
+            // Closed by Close() when the peer shuts down
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Stop accepting connections, once the last torrent of the session stops
+    public void Close() throws IOException {
+        listener.close();
+    }
+
+    /**
+     * A handshake handler for incoming connections. It runs on the event loop of the
+     * connection once the client's handshake is received, and hands the connection to
+     * the torrent whose content id is in the handshake.
+     */
+    private class Handler implements HandshakeListener {
+
+        public void HandleHandshake(PeerConnection connection, byte[] hand_shake_rcv) {
+            // If Handshake verification fails, then drop the connection
+            if (!HandShake.VerifyHandShakeMessage(hand_shake_rcv)) {
+                System.err.println("Data received in unknown format");
+                connection.Close();
+                return;
+            }
+            // Drop the connection if the host does not serve the torrent, or no longer does
+            peerProcess host_peer = session.GetTorrent(HandShake.GetContentId(hand_shake_rcv));
+            if (host_peer == null) {
+                connection.Close();
+                return;
+            }
+            Integer client_peer_id = Integer.valueOf(new String(hand_shake_rcv).substring(28));
+            PeerDetails neighbor_peer = host_peer.neighbors_list.get(client_peer_id);
+            if (neighbor_peer == null || host_peer.IsBanned(neighbor_peer)) {
+                connection.Close();
+                return;
+            }
+            connection.Bind(host_peer);
+            host_peer.logger.log("is connected from Peer " + client_peer_id);
+
+            // Send handshake to client
+            HandShake hand_shake_msg = new HandShake(host_peer.peer_id, host_peer.content_id);
+            Utils.sendMessage(hand_shake_msg.BuildHandshakeMessage(), connection);
+
+            // If server has any pieces, send bitfield to client. Every piece logged before the
+            // bitfield is built is in it, later ones are sent as HAVE.
+            int have_cursor = host_peer.have_log.Size();
+            if(have_cursor > 0) {
+                connection.Send(MessageType.BITFIELD, host_peer.host_details.bitfield_piece_index.ToByteArray());
+            }
+
+            // Create a P2PMessageHandler for the connection which will be responsible
+            // to handle all type of messages
+            connection.Attach(neighbor_peer, have_cursor);
+        }
+    }
+}
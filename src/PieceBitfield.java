@@ -0,0 +1,162 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// PieceBitfield holds one bit per piece of the file and can be updated by many threads at once.
+// Setting a bit is a compare-and-set on its 64-bit word, so concurrent sets of bits in the same
+// word are never lost (a plain BitSet silently drops one of them). The number of set bits is kept
+// up to date on every change, and whole bitfields are compared a word at a time.
+public class PieceBitfield {
+    private final AtomicLongArray words;
+    private final int no_of_pieces;
+    private final AtomicInteger count;     // Set bits
+
+    public PieceBitfield(int no_of_pieces) {
+        this.no_of_pieces = no_of_pieces;
+        this.words        = new AtomicLongArray((no_of_pieces + 63) >>> 6);
+        this.count        = new AtomicInteger(0);
+    }
+
+    private PieceBitfield(int no_of_pieces, long[] words) {
+        this.no_of_pieces = no_of_pieces;
+        this.words        = new AtomicLongArray(words);
+        int bits = 0;
+        for (long word : words)
+            bits += Long.bitCount(word);
+        this.count        = new AtomicInteger(bits);
+    }
+
+    public int Size() {
+        return no_of_pieces;
+    }
+
+    public boolean Get(int index) {
+        if (index < 0 || index >= no_of_pieces)
+            return false;
+        return (words.get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    // Set the bit, returns true only for the thread that changed it from 0 to 1. A piece index out
+    // of range, e.g. from a bad HAVE, is not set
+    public boolean Set(int index) {
+        if (index < 0 || index >= no_of_pieces)
+            return false;
+        int word_index = index >>> 6;
+        long mask = 1L << index;
+        while (true) {
+            long word = words.get(word_index);
+            if ((word & mask) != 0)
+                return false;
+            if (words.compareAndSet(word_index, word, word | mask)) {
+                count.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    public void Clear(int index) {
+        if (index < 0 || index >= no_of_pieces)
+            return;
+        int word_index = index >>> 6;
+        long mask = 1L << index;
+        while (true) {
+            long word = words.get(word_index);
+            if ((word & mask) == 0)
+                return;
+            if (words.compareAndSet(word_index, word, word & ~mask)) {
+                count.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    // Number of pieces set, without counting the bits
+    public int Count() {
+        return count.get();
+    }
+
+    public boolean IsComplete() {
+        return count.get() == no_of_pieces;
+    }
+
+    // True if this bitfield has a piece which other has not, the neighbor's bitfield has a piece
+    // the host is interested in. Compares 64 pieces at a time.
+    public boolean HasPieceNotIn(PieceBitfield other) {
+        for (int i = 0; i < words.length(); i++) {
+            if ((words.get(i) & ~other.words.get(i)) != 0)
+                return true;
+        }
+        return false;
+    }
+
+    // The 64 pieces from 64 * word_index on, the first one is the lowest bit. Lets the picker
+    // intersect the bitfield with its own a word at a time.
+    public long GetWord(int word_index) {
+        return words.get(word_index);
+    }
+
+    // Index of the first set bit at or after from_index, -1 if there is none
+    public int NextSetBit(int from_index) {
+        if (from_index >= no_of_pieces)
+            return -1;
+        int word_index = from_index >>> 6;
+        long word = words.get(word_index) & (-1L << from_index);
+        while (true) {
+            if (word != 0)
+                return (word_index << 6) + Long.numberOfTrailingZeros(word);
+            if (++word_index == words.length())
+                return -1;
+            word = words.get(word_index);
+        }
+    }
+
+    // Index of the first clear bit at or after from_index, no_of_pieces if there is none
+    public int NextClearBit(int from_index) {
+        if (from_index >= no_of_pieces)
+            return no_of_pieces;
+        int word_index = from_index >>> 6;
+        long word = ~words.get(word_index) & (-1L << from_index);
+        while (true) {
+            if (word != 0)
+                return Math.min(no_of_pieces, (word_index << 6) + Long.numberOfTrailingZeros(word));
+            if (++word_index == words.length())
+                return no_of_pieces;
+            word = ~words.get(word_index);
+        }
+    }
+
+    // Byte byte_index of the BITFIELD encoding: piece 8 * byte_index is the high bit
+    public byte GetByte(int byte_index) {
+        return (byte) (Long.reverse(words.get(byte_index >>> 3)) >>> (56 - (byte_index & 7) * 8));
+    }
+
+    // BITFIELD message payload: one bit per piece, the first piece is the high bit of the first
+    // byte, the spare bits at the end are 0. Reversing a word puts its 8 bytes in this order.
+    public byte[] ToByteArray() {
+        byte[] bytes = new byte[(no_of_pieces + 7) / 8];
+        ByteBuffer out = ByteBuffer.wrap(bytes);
+        int full_words = bytes.length / 8;
+        for (int i = 0; i < full_words; i++)
+            out.putLong(Long.reverse(words.get(i)));
+        for (int i = full_words * 8; i < bytes.length; i++)
+            bytes[i] = GetByte(i);
+        return bytes;
+    }
+
+    // Bitfield of no_of_pieces pieces from a BITFIELD payload encoded like ToByteArray(). Missing
+    // bytes are pieces the sender does not have, spare bits and extra bytes are ignored.
+    public static PieceBitfield FromBytes(ByteBuffer bytes, int no_of_pieces) {
+        long[] words = new long[(no_of_pieces + 63) >>> 6];
+        int length = Math.min(bytes.remaining(), (no_of_pieces + 7) / 8);
+        int position = bytes.position();
+        int full_words = length / 8;
+        for (int i = 0; i < full_words; i++)
+            words[i] = Long.reverse(bytes.getLong(position + i * 8));
+        for (int i = full_words * 8; i < length; i++)
+            words[i >>> 3] |= (Integer.reverse(bytes.get(position + i) & 0xff) >>> 24 & 0xffL) << ((i & 7) * 8);
+        // Drop the spare bits after the last piece
+        if ((no_of_pieces & 63) != 0 && words.length > 0)
+            words[words.length - 1] &= (1L << no_of_pieces) - 1;
+        return new PieceBitfield(no_of_pieces, words);
+    }
+}
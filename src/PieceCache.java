@@ -0,0 +1,336 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// PieceCache keeps the pieces most requested by the neighbors in memory, up to PieceCacheBytes for
+// all torrents of the session, so that PIECEs for hot pieces are written from memory instead of
+// being read from the file again. Pieces are kept in direct buffers, written to the socket as is.
+//
+// Eviction is W-TinyLFU: a piece enters a small LRU window (1% of the budget), and a piece leaving
+// the window only replaces the least recently used piece of the main area if it was requested more
+// often, as counted by a frequency sketch which forgets old counts over time. So one pass over many
+// pieces (e.g. a neighbor downloading the whole file in order) cannot flush the hot ones. The main
+// area is a segmented LRU: pieces hit again move from probation to protected (80% of it).
+//
+// A miss does not wait for the disk: the block is sent from the file as before and the piece is
+// loaded on a loader thread. Pieces received and verified are put in right away, as the neighbors
+// ask for a new piece as soon as they get its HAVE.
+public class PieceCache {
+    private final long budget;                                   // Bytes of all cached pieces
+    private final long window_budget;
+    private final long protected_budget;
+    private final ReentrantLock lock;
+    private final LinkedHashMap<Long, ByteBuffer> window;        // In LRU order, eldest first
+    private final LinkedHashMap<Long, ByteBuffer> probation;
+    private final LinkedHashMap<Long, ByteBuffer> protected_area;
+    private long window_bytes, probation_bytes, protected_bytes;
+    private final FrequencySketch sketch;
+    private final HashSet<Long> loading;                         // Pieces queued for the loader, under lock
+    private final ThreadPoolExecutor loader;
+    // Metrics
+    private final LongAdder hits, misses, loads, read_aheads, evictions;
+
+    public PieceCache(long budget, int expected_piece_size) {
+        this.budget           = budget;
+        this.window_budget    = Math.max(1, budget / 100);
+        this.protected_budget = (budget - window_budget) * 4 / 5;
+        this.lock             = new ReentrantLock();
+        this.window           = new LinkedHashMap<>(16, 0.75f, true);
+        this.probation        = new LinkedHashMap<>(16, 0.75f, true);
+        this.protected_area   = new LinkedHashMap<>(16, 0.75f, true);
+        this.sketch           = new FrequencySketch((int) Math.min(1 << 24, Math.max(16, budget / Math.max(1, expected_piece_size))));
+        this.loading          = new HashSet<>();
+        // Loads beyond what the queue holds are dropped, they are only an optimization
+        this.loader           = new ThreadPoolExecutor(2, 2, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<>(64), task -> {
+            Thread thread = new Thread(task, "PieceCache");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.hits             = new LongAdder();
+        this.misses           = new LongAdder();
+        this.loads            = new LongAdder();
+        this.read_aheads      = new LongAdder();
+        this.evictions        = new LongAdder();
+    }
+
+    private static long Key(int content_id, int index) {
+        return ((long) content_id << 32) | (index & 0xffffffffL);
+    }
+
+    // The cached piece, a read-only buffer to be duplicated by the caller, or null on a miss
+    public ByteBuffer Get(int content_id, int index) {
+        long key = Key(content_id, index);
+        lock.lock();
+        try {
+            sketch.Increment(key);
+            ByteBuffer piece = window.get(key);
+            if (piece == null)
+                piece = protected_area.get(key);
+            if (piece == null && (piece = probation.remove(key)) != null) {
+                // Hit again, keep it longer
+                probation_bytes -= piece.capacity();
+                protected_area.put(key, piece);
+                protected_bytes += piece.capacity();
+                while (protected_bytes > protected_budget && protected_area.size() > 1) {
+                    Map.Entry<Long, ByteBuffer> eldest = RemoveEldest(protected_area);
+                    protected_bytes -= eldest.getValue().capacity();
+                    probation.put(eldest.getKey(), eldest.getValue());
+                    probation_bytes += eldest.getValue().capacity();
+                }
+            }
+            if (piece == null)
+                misses.increment();
+            else
+                hits.increment();
+            return piece;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Cache a piece the host has, e.g. right after it was received and verified
+    public void Put(int content_id, int index, byte[] piece) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(piece.length);
+        buffer.put(piece).flip();
+        Put(Key(content_id, index), buffer.asReadOnlyBuffer());
+    }
+
+    private void Put(long key, ByteBuffer piece) {
+        if (piece.capacity() > budget)
+            return;
+        lock.lock();
+        try {
+            if (window.containsKey(key) || probation.containsKey(key) || protected_area.containsKey(key))
+                return;
+            window.put(key, piece);
+            window_bytes += piece.capacity();
+            // The pieces leaving the window compete for the main area
+            while (window_bytes > window_budget && window.size() > 1) {
+                Map.Entry<Long, ByteBuffer> candidate = RemoveEldest(window);
+                window_bytes -= candidate.getValue().capacity();
+                Admit(candidate.getKey(), candidate.getValue());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Move a piece from the window to probation if there is room, or if it is requested more often
+    // than the pieces it would replace. Called with the lock held.
+    private void Admit(long key, ByteBuffer piece) {
+        long main_budget = budget - window_budget;
+        while (probation_bytes + protected_bytes + piece.capacity() > main_budget) {
+            LinkedHashMap<Long, ByteBuffer> victims = !probation.isEmpty() ? probation : protected_area;
+            if (victims.isEmpty()) {
+                // Bigger than the main area
+                evictions.increment();
+                return;
+            }
+            long victim = victims.keySet().iterator().next();
+            if (sketch.Frequency(key) <= sketch.Frequency(victim)) {
+                evictions.increment();
+                return;
+            }
+            ByteBuffer evicted = victims.remove(victim);
+            if (victims == probation)
+                probation_bytes -= evicted.capacity();
+            else
+                protected_bytes -= evicted.capacity();
+            evictions.increment();
+        }
+        probation.put(key, piece);
+        probation_bytes += piece.capacity();
+    }
+
+    private static Map.Entry<Long, ByteBuffer> RemoveEldest(LinkedHashMap<Long, ByteBuffer> segment) {
+        Iterator<Map.Entry<Long, ByteBuffer>> entries = segment.entrySet().iterator();
+        Map.Entry<Long, ByteBuffer> eldest = entries.next();
+        Map.Entry<Long, ByteBuffer> entry = Map.entry(eldest.getKey(), eldest.getValue());
+        entries.remove();
+        return entry;
+    }
+
+    // Load the piece on a loader thread after a miss, unless it is cached or loading already
+    public void Load(peerProcess torrent, int index) {
+        if (Submit(torrent, index))
+            loads.increment();
+    }
+
+    // A neighbor requests the pieces in order: load the next no_of_pieces pieces the host has
+    public void ReadAhead(peerProcess torrent, int index, int no_of_pieces) {
+        for (int i = index; i < index + no_of_pieces && i < torrent.no_of_pieces; i++) {
+            if (torrent.host_details.bitfield_piece_index.Get(i) && Submit(torrent, i))
+                read_aheads.increment();
+        }
+    }
+
+    private boolean Submit(peerProcess torrent, int index) {
+        long key = Key(torrent.content_id, index);
+        lock.lock();
+        try {
+            if (window.containsKey(key) || probation.containsKey(key) || protected_area.containsKey(key)
+                    || !loading.add(key))
+                return false;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            loader.execute(() -> {
+                try {
+                    Put(key, Read(torrent.file_handler, index));
+                } catch (IOException e) {
+                    // The file is closed, the torrent stopped
+                } finally {
+                    Loaded(key);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            Loaded(key);
+            return false;
+        }
+    }
+
+    private void Loaded(long key) {
+        lock.lock();
+        try {
+            loading.remove(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static ByteBuffer Read(FileHandler file_handler, int index) throws IOException {
+        long start = System.nanoTime();
+        ByteBuffer piece = ByteBuffer.allocateDirect(file_handler.GetPieceLength(index));
+        FileChannel file_channel = file_handler.GetFileChannel();
+        long offset = file_handler.GetPieceOffset(index);
+        while (piece.hasRemaining()) {
+            if (file_channel.read(piece, offset + piece.position()) == -1)
+                throw new EOFException("Piece " + index + " is beyond the end of the file");
+        }
+        piece.flip();
+        file_handler.read_latency.RecordSince(start);
+        return piece.asReadOnlyBuffer();
+    }
+
+    // Drop the pieces of a torrent which stopped
+    public void Remove(int content_id) {
+        lock.lock();
+        try {
+            window_bytes    -= RemoveTorrent(window, content_id);
+            probation_bytes -= RemoveTorrent(probation, content_id);
+            protected_bytes -= RemoveTorrent(protected_area, content_id);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static long RemoveTorrent(LinkedHashMap<Long, ByteBuffer> segment, int content_id) {
+        long removed = 0;
+        Iterator<Map.Entry<Long, ByteBuffer>> entries = segment.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Long, ByteBuffer> entry = entries.next();
+            if ((int) (entry.getKey() >>> 32) == content_id) {
+                removed += entry.getValue().capacity();
+                entries.remove();
+            }
+        }
+        return removed;
+    }
+
+    public void Shutdown() {
+        loader.shutdownNow();
+    }
+
+    public long GetHits() {
+        return hits.sum();
+    }
+
+    public long GetMisses() {
+        return misses.sum();
+    }
+
+    public long GetEvictions() {
+        return evictions.sum();
+    }
+
+    public long GetCachedBytes() {
+        lock.lock();
+        try {
+            return window_bytes + probation_bytes + protected_bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String Stats() {
+        long no_of_hits = hits.sum(), no_of_misses = misses.sum();
+        return String.format("hits %d, misses %d (%.1f%% hits), loads %d, read-aheads %d, evictions %d",
+                no_of_hits, no_of_misses, no_of_hits + no_of_misses > 0 ? 100.0 * no_of_hits / (no_of_hits + no_of_misses) : 0.0,
+                loads.sum(), read_aheads.sum(), evictions.sum());
+    }
+
+    // Count-Min sketch of how often each piece was requested recently: 4 rows of 4-bit counters,
+    // a piece's frequency is its smallest counter. All counters are halved after 10 increments per
+    // counter of a row, so pieces popular a while ago fade out. Only used under the cache's lock.
+    private static class FrequencySketch {
+        private static final long[] SEEDS = { 0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L };
+        private final long[] table;  // 16 counters per long
+        private final int mask;      // Counters per row - 1, a power of 2 minus 1
+        private final int sample_size;
+        private int additions;
+
+        FrequencySketch(int expected_entries) {
+            int counters = Integer.highestOneBit(Math.max(16, expected_entries * 4 - 1)) << 1;
+            this.mask        = counters - 1;
+            this.table       = new long[counters / 16 * SEEDS.length];
+            this.sample_size = counters * 10;
+        }
+
+        private int Index(long key, int row) {
+            long hash = (key + SEEDS[row]) * SEEDS[(row + 1) & 3];
+            int counter = (int) (hash ^ (hash >>> 32)) & mask;
+            return row * (mask + 1) + counter;
+        }
+
+        private int Get(int index) {
+            return (int) (table[index >>> 4] >>> ((index & 15) << 2)) & 15;
+        }
+
+        int Frequency(long key) {
+            int frequency = 15;
+            for (int row = 0; row < SEEDS.length; row++)
+                frequency = Math.min(frequency, Get(Index(key, row)));
+            return frequency;
+        }
+
+        void Increment(long key) {
+            boolean added = false;
+            for (int row = 0; row < SEEDS.length; row++) {
+                int index = Index(key, row);
+                if (Get(index) < 15) {
+                    table[index >>> 4] += 1L << ((index & 15) << 2);
+                    added = true;
+                }
+            }
+            if (added && ++additions == sample_size) {
+                // Halve every counter: shift each 4-bit counter right by one
+                for (int i = 0; i < table.length; i++)
+                    table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+                additions /= 2;
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+
+// PieceManifest holds the expected hash of every piece. It is generated from the complete file by
+// a peer that has it and stored next to Common.cfg as "<FileName>.hashes":
+//   first line:  <algorithm> <file size> <piece size>
+//   then one line per piece with the hex encoded hash
+public class PieceManifest {
+    private final String algorithm;
+    private final byte[][] hashes;
+    private final ThreadLocal<MessageDigest> digest; // MessageDigest is not thread safe, one per worker
+
+    private PieceManifest(String algorithm, byte[][] hashes) {
+        this.algorithm = algorithm;
+        this.hashes    = hashes;
+        this.digest    = ThreadLocal.withInitial(() -> NewDigest(algorithm));
+    }
+
+    private static MessageDigest NewDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unsupported PieceHashAlgorithm " + algorithm, e);
+        }
+    }
+
+    public static String GetPath(peerProcess host_peer) {
+        return host_peer.config_params.get("FileName") + ".hashes";
+    }
+
+    // Hash every piece of the host's complete file and store the manifest. The manifest is written
+    // to a temporary file first so that peers starting at the same time never read half of it.
+    public static PieceManifest Generate(peerProcess host_peer, String algorithm) throws IOException {
+        FileHandler file_handler = host_peer.file_handler;
+        MessageDigest digest = NewDigest(algorithm);
+        byte[][] hashes = new byte[host_peer.no_of_pieces][];
+        for (int i = 0; i < hashes.length; i++)
+            hashes[i] = digest.digest(file_handler.GetPiece(i));
+
+        File file = new File(GetPath(host_peer));
+        File temp = new File(file.getPath() + ".tmp");
+        try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(temp)))) {
+            writer.println(algorithm + " " + host_peer.config_params.get("FileSize") + " " + host_peer.config_params.get("PieceSize"));
+            for (byte[] hash : hashes)
+                writer.println(ToHex(hash));
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return new PieceManifest(algorithm, hashes);
+    }
+
+    // Read the manifest, returns null if there is none or it was generated for another file
+    public static PieceManifest Load(peerProcess host_peer, String algorithm) throws IOException {
+        File file = new File(GetPath(host_peer));
+        if (!file.exists())
+            return null;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String[] header = reader.readLine().split(" ");
+            if (!header[0].equals(algorithm) || !header[1].equals(host_peer.config_params.get("FileSize"))
+                    || !header[2].equals(host_peer.config_params.get("PieceSize")))
+                return null;
+            ArrayList<byte[]> hashes = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty())
+                hashes.add(FromHex(line));
+            if (hashes.size() != host_peer.no_of_pieces)
+                return null;
+            return new PieceManifest(algorithm, hashes.toArray(new byte[0][]));
+        }
+    }
+
+    // True if the data hashes to the expected value of the piece, safe to call from any thread
+    public boolean Verify(int index, byte[] data) {
+        return MessageDigest.isEqual(hashes[index], digest.get().digest(data));
+    }
+
+    public String GetAlgorithm() {
+        return algorithm;
+    }
+
+    private static String ToHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return hex.toString();
+    }
+
+    private static byte[] FromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        return bytes;
+    }
+}
@@ -0,0 +1,303 @@
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+// PiecePicker decides which block to request next from a neighbor. Pieces are downloaded block by
+// block: the blocks of a started piece are handed out first, to any neighbor having the piece,
+// before a new piece is chosen by the subclass. It keeps track of the blocks in flight so that the
+// same block is not requested from two neighbors, and of the pieces the host already has. All
+// methods hold the lock as every connection requests blocks through it; a ReentrantLock rather
+// than synchronized, which would pin a virtual thread waiting for it to its carrier thread.
+public abstract class PiecePicker {
+    protected final int no_of_pieces;
+    protected final BitSet requested;   // Pieces started (see partial_pieces) and not received yet
+    protected final BitSet received;    // Pieces the host has
+    protected int no_of_received;
+    protected int no_of_requested;      // Pieces started
+    private final LinkedHashMap<Integer, PartialPiece> partial_pieces; // Started pieces, oldest first
+    private int piece_size, last_piece_size, block_size;
+    private boolean endgame;
+    private final ReentrantLock lock;
+
+    protected PiecePicker(int no_of_pieces) {
+        this.no_of_pieces    = no_of_pieces;
+        this.requested       = new BitSet(no_of_pieces);
+        this.received        = new BitSet(no_of_pieces);
+        this.partial_pieces  = new LinkedHashMap<>();
+        this.no_of_received  = 0;
+        this.no_of_requested = 0;
+        this.endgame         = false;
+        this.lock            = new ReentrantLock();
+    }
+
+    // Block state of a piece being downloaded
+    private class PartialPiece {
+        final int index;
+        final int[] block_requests;     // Neighbors each block is requested from, >1 only in endgame
+        final int[] block_sources;      // Neighbor each received block came from
+        final BitSet received_blocks;
+        int no_of_received_blocks;
+
+        PartialPiece(int index) {
+            this.index           = index;
+            int no_of_blocks     = (GetPieceLength(index) + block_size - 1) / block_size;
+            this.block_requests  = new int[no_of_blocks];
+            this.block_sources   = new int[no_of_blocks];
+            this.received_blocks = new BitSet(no_of_blocks);
+        }
+
+        // First block not received and requested from fewer than max_requests neighbors, -1 if none
+        int NextBlock(int max_requests, Set<Block> outstanding_requests) {
+            for (int b = received_blocks.nextClearBit(0); b < block_requests.length; b = received_blocks.nextClearBit(b + 1)) {
+                if (block_requests[b] < max_requests && (outstanding_requests == null || !outstanding_requests.contains(GetBlock(b))))
+                    return b;
+            }
+            return -1;
+        }
+
+        Block GetBlock(int b) {
+            int offset = b * block_size;
+            return new Block(index, offset, Math.min(block_size, GetPieceLength(index) - offset));
+        }
+    }
+
+    // Create the picker selected by PiecePicker (rarest or sequential) in Common.cfg
+    public static PiecePicker Create(peerProcess host_peer) {
+        String strategy  = host_peer.config_params.getOrDefault("PiecePicker", "rarest");
+        int random_first = Integer.parseInt(host_peer.config_params.getOrDefault("RandomFirstPieces", "4"));
+        PiecePicker picker;
+        if (strategy.equals("sequential"))
+            picker = new SequentialPiecePicker(host_peer.no_of_pieces);
+        else
+            picker = new RarestFirstPiecePicker(host_peer.no_of_pieces, host_peer.neighbors_list.size(), random_first);
+
+        long file_size         = Long.parseLong(host_peer.config_params.get("FileSize"));
+        picker.piece_size      = Integer.parseInt(host_peer.config_params.get("PieceSize"));
+        picker.last_piece_size = (int) (file_size - (long) (host_peer.no_of_pieces - 1) * picker.piece_size);
+        picker.block_size      = Integer.parseInt(host_peer.config_params.getOrDefault("BlockSize", "16384"));
+
+        PieceBitfield host_bitfield = host_peer.host_details.bitfield_piece_index;
+        for (int i = host_bitfield.NextSetBit(0); i >= 0 && i < host_peer.no_of_pieces; i = host_bitfield.NextSetBit(i + 1))
+            picker.PieceReceived(i);
+        return picker;
+    }
+
+    private int GetPieceLength(int index) {
+        return index == no_of_pieces - 1 ? last_piece_size : piece_size;
+    }
+
+    // Returns a block the neighbor has which is neither received nor requested, and marks it as
+    // requested. Blocks of started pieces come first, then a new piece is chosen by SelectPiece.
+    // Returns null if there is no such block.
+    public Block Pick(PieceBitfield neighbor_bitfield) {
+        lock.lock();
+        try {
+            for (PartialPiece piece : partial_pieces.values()) {
+                if (!neighbor_bitfield.Get(piece.index))
+                    continue;
+                int b = piece.NextBlock(1, null);
+                if (b != -1) {
+                    piece.block_requests[b]++;
+                    return piece.GetBlock(b);
+                }
+            }
+            int index = SelectPiece(neighbor_bitfield);
+            if (index == -1)
+                return null;
+            PartialPiece piece = new PartialPiece(index);
+            partial_pieces.put(index, piece);
+            requested.set(index);
+            no_of_requested++;
+            OnPieceRequested(index);
+            piece.block_requests[0]++;
+            return piece.GetBlock(0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Endgame: every missing block is already in flight. Returns a missing block the neighbor has
+    // which is not already requested from this neighbor, so the tail of the download is requested
+    // redundantly from every neighbor that has it. Returns null if there is none.
+    public Block PickEndgame(PieceBitfield neighbor_bitfield, Set<Block> outstanding_requests) {
+        lock.lock();
+        try {
+            for (PartialPiece piece : partial_pieces.values()) {
+                if (!neighbor_bitfield.Get(piece.index))
+                    continue;
+                int b = piece.NextBlock(Integer.MAX_VALUE, outstanding_requests);
+                if (b != -1) {
+                    piece.block_requests[b]++;
+                    return piece.GetBlock(b);
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // True when the host is missing pieces but all of their blocks are requested from some neighbor
+    public boolean InEndgame() {
+        lock.lock();
+        try {
+            if (no_of_received == no_of_pieces || no_of_received + no_of_requested < no_of_pieces)
+                return false;
+            for (PartialPiece piece : partial_pieces.values()) {
+                if (piece.NextBlock(1, null) != -1)
+                    return false;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns true only for the first call after the endgame starts
+    public boolean EnterEndgame() {
+        lock.lock();
+        try {
+            if (endgame || !InEndgame())
+                return false;
+            endgame = true;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // True once the endgame started, a received block may then be in flight from other neighbors too
+    public boolean IsEndgame() {
+        lock.lock();
+        try {
+            return endgame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Pieces started and not received yet, for the metrics
+    public int GetStartedPieces() {
+        lock.lock();
+        try {
+            return no_of_requested;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The request was dropped (choke or disconnect), the block may be picked again. The piece stays
+    // started so its other blocks are still preferred over new pieces.
+    public void Release(Block block) {
+        lock.lock();
+        try {
+            PartialPiece piece = partial_pieces.get(block.index);
+            int b = block.offset / block_size;
+            if (piece != null && piece.block_requests[b] > 0)
+                piece.block_requests[b]--;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // What a received block is for the piece it belongs to
+    public enum BlockStatus {
+        DUPLICATE,   // Received already (e.g. from another neighbor in endgame) or the piece is done, drop it
+        NEW_BLOCK,   // First copy of the block, store it
+        LAST_BLOCK   // First copy and it completes the piece, store it then verify the piece
+    }
+
+    // A block arrived from a neighbor. Only the first copy of a block may be stored: a duplicate
+    // written later could overwrite the piece while it is verified, or after. Once the last block
+    // is stored, the piece is committed with PieceReceived() or restarted with PieceFailed().
+    public BlockStatus BlockReceived(Block block, int from_peer_id) {
+        lock.lock();
+        try {
+            PartialPiece piece = partial_pieces.get(block.index);
+            int b = block.offset / block_size;
+            if (piece == null || piece.received_blocks.get(b))
+                return BlockStatus.DUPLICATE;
+            piece.received_blocks.set(b);
+            piece.block_requests[b] = 0;
+            piece.block_sources[b]  = from_peer_id;
+            return ++piece.no_of_received_blocks == piece.block_requests.length ? BlockStatus.LAST_BLOCK : BlockStatus.NEW_BLOCK;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The piece failed verification, download all its blocks again. Returns the neighbors the
+    // blocks came from.
+    public int[] PieceFailed(int index) {
+        lock.lock();
+        try {
+            PartialPiece piece = partial_pieces.get(index);
+            if (piece == null)
+                return new int[0];
+            int[] sources = piece.block_sources.clone();
+            partial_pieces.put(index, new PartialPiece(index));
+            return sources;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The host has the piece, either committed after download or already on disk at startup
+    public void PieceReceived(int index) {
+        lock.lock();
+        try {
+            if (received.get(index))
+                return;
+            if (partial_pieces.remove(index) != null) {
+                requested.clear(index);
+                no_of_requested--;
+            }
+            received.set(index);
+            no_of_received++;
+            OnPieceReceived(index);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // A neighbor sent its BITFIELD
+    public void AddPeer(PieceBitfield neighbor_bitfield) {
+        lock.lock();
+        try {
+            for (int i = neighbor_bitfield.NextSetBit(0); i >= 0 && i < no_of_pieces; i = neighbor_bitfield.NextSetBit(i + 1))
+                OnAvailabilityChanged(i, 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // A neighbor disconnected, its pieces are no longer available from it
+    public void RemovePeer(PieceBitfield neighbor_bitfield) {
+        lock.lock();
+        try {
+            for (int i = neighbor_bitfield.NextSetBit(0); i >= 0 && i < no_of_pieces; i = neighbor_bitfield.NextSetBit(i + 1))
+                OnAvailabilityChanged(i, -1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // A neighbor sent a HAVE for a piece it did not have before
+    public void PeerHas(int index) {
+        lock.lock();
+        try {
+            OnAvailabilityChanged(index, 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    protected abstract int SelectPiece(PieceBitfield neighbor_bitfield);
+
+    protected void OnAvailabilityChanged(int index, int delta) {}
+
+    protected void OnPieceRequested(int index) {}
+
+    protected void OnPieceReceived(int index) {}
+}
@@ -0,0 +1,62 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+// PieceTransfer is a queued PIECE message whose block is written from the piece in the PieceCache,
+// or else streamed straight from the file on disk with FileChannel.transferTo (sendfile). Either
+// way the block never passes through the Java heap.
+public class PieceTransfer {
+    final ByteBuffer header;          // Pooled buffer with message length, type, piece index and offset
+    final Block block;
+    private final FileChannel file_channel;
+    private final ByteBuffer data;    // The block in a cached piece, null to send from the file
+    private long position;            // Next file offset to send
+    private long remaining;           // Block bytes left to send
+    boolean admitted;                 // The upload limits let it through, it may be written
+
+    public PieceTransfer(Block block, ByteBuffer header, FileChannel file_channel, long position, ByteBuffer data) {
+        this.block        = block;
+        this.header       = header;
+        this.file_channel = file_channel;
+        this.data         = data;
+        this.position     = position;
+        this.remaining    = block.length;
+    }
+
+    // True until the first byte of the message is written
+    public boolean NotStarted() {
+        return header.position() == 0;
+    }
+
+    // Write as much as the socket accepts, returns true once the whole message is written. Throws
+    // if the block is not in the file, checked before the header is sent so no frame is cut short.
+    public boolean TransferTo(WritableByteChannel target) throws IOException {
+        if (NotStarted() && data == null && position + remaining > file_channel.size())
+            throw new IOException("Block " + block.index + " is beyond the end of the file");
+        if (header.hasRemaining()) {
+            target.write(header);
+            if (header.hasRemaining())
+                return false;
+        }
+        while (data != null && data.hasRemaining()) {
+            if (target.write(data) <= 0)
+                return false;
+        }
+        if (data != null)
+            return true;
+        while (remaining > 0) {
+            long sent = file_channel.transferTo(position, remaining, target);
+            if (sent <= 0) {
+                // transferTo also sends nothing at the end of the file, e.g. once it was truncated
+                if (position >= file_channel.size())
+                    throw new IOException("Block " + block.index + " is beyond the end of the file");
+                // Socket buffer is full, continue on the next OP_WRITE
+                return false;
+            }
+            position  += sent;
+            remaining -= sent;
+        }
+        return true;
+    }
+}
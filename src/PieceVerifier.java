@@ -0,0 +1,88 @@
+import java.io.IOException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// PieceVerifier hashes received pieces on a small pool of worker threads so the event loops keep
+// reading while pieces are verified. A piece is marked and announced only once its hash matches
+// the manifest. The queue is bounded: when the workers fall behind, the DiskWriter thread submitting
+// the piece verifies it itself, which slows down writing instead of queueing pieces.
+// The workers are the session's, shared by the verifiers of all its torrents.
+public class PieceVerifier {
+    private final PieceManifest manifest;
+    private final ThreadPoolExecutor workers;
+    private final ReentrantLock lock;
+    private final Condition idle;  // No piece of this verifier is pending any more
+    private int pending;           // Pieces submitted and not verified yet
+    public final Metrics.Histogram hash_time = new Metrics.Histogram();
+
+    public PieceVerifier(PieceManifest manifest, ThreadPoolExecutor workers) {
+        this.manifest = manifest;
+        this.workers  = workers;
+        this.lock     = new ReentrantLock();
+        this.idle     = lock.newCondition();
+    }
+
+    // Wait until the pieces submitted so far are verified, at most 5 seconds. The workers keep
+    // serving the other torrents.
+    public void Shutdown() throws InterruptedException {
+        long remaining = TimeUnit.SECONDS.toNanos(5);
+        lock.lock();
+        try {
+            while (pending > 0 && remaining > 0)
+                remaining = idle.awaitNanos(remaining);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Verify a piece of the file on the calling thread
+    public boolean Verify(int index, FileHandler file_handler) throws IOException {
+        return Hash(index, file_handler.GetPiece(index));
+    }
+
+    // Read the completely written piece back from the file and verify it, then commit it or reject
+    // it through the handler of the connection its last block was received on
+    public void Submit(int index, FileHandler file_handler, P2PMessageHandler handler) {
+        lock.lock();
+        try {
+            pending++;
+        } finally {
+            lock.unlock();
+        }
+        workers.execute(() -> {
+            try {
+                byte[] piece = file_handler.GetPiece(index);
+                if (Hash(index, piece)) {
+                    // Neighbors request the piece as soon as they get its HAVE
+                    handler.host_peer.CachePiece(index, piece);
+                    handler.CommitPiece(index);
+                } else
+                    handler.RejectPiece(index);
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                Done();
+            }
+        });
+    }
+
+    // Check the piece against the manifest, timing the hash
+    private boolean Hash(int index, byte[] piece) {
+        long start = System.nanoTime();
+        boolean valid = manifest.Verify(index, piece);
+        hash_time.RecordSince(start);
+        return valid;
+    }
+
+    private void Done() {
+        lock.lock();
+        try {
+            if (--pending == 0)
+                idle.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
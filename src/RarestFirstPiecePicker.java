@@ -0,0 +1,160 @@
+import java.util.Random;
+
+// Requests the piece the fewest neighbors have, so rare pieces spread through the swarm first.
+// Pieces are kept in an array sorted by availability where each availability value owns one
+// bucket (a range of the array). A HAVE moves a piece to the next bucket with a single swap, so
+// counts are maintained in O(1) and picking scans from the rarest end without sorting.
+// Until the host has RandomFirstPieces pieces a random piece is picked instead, so a new peer
+// quickly has something to trade.
+//
+// A piece leaves the buckets for good once it is requested, so a pick only looks at pieces still
+// wanted. Each bucket also has a bit per piece: a bucket bigger than the bitfield's words is
+// intersected with the neighbor's bitfield 64 pieces at a time instead of being scanned, so a
+// pick costs at most min(bucket size, pieces / 64) for each bucket it looks at.
+public class RarestFirstPiecePicker extends PiecePicker {
+    private final int[] pieces;        // Piece indices ordered by availability
+    private final int[] position;      // Position of each piece in pieces
+    private final int[] availability;  // Number of neighbors having each piece
+    private final int[] bucket_start;  // Bucket a is pieces[bucket_start[a] .. bucket_start[a + 1])
+    private final long[][] bucket_bits; // Pieces of bucket a as bits, for the buckets picked from
+    private final long[] wanted;       // Pieces neither requested nor received as bits
+    private final int done_bucket;     // Requested and received pieces are parked in the last bucket
+    private final int random_first_pieces;
+    private final Random random;
+
+    public RarestFirstPiecePicker(int no_of_pieces, int max_neighbors, int random_first_pieces) {
+        super(no_of_pieces);
+        int no_of_words          = (no_of_pieces + 63) >>> 6;
+        this.pieces              = new int[no_of_pieces];
+        this.position            = new int[no_of_pieces];
+        this.availability        = new int[no_of_pieces];
+        this.done_bucket         = max_neighbors + 1;
+        this.bucket_start        = new int[done_bucket + 2];
+        this.bucket_bits         = new long[done_bucket][];
+        this.wanted              = new long[no_of_words];
+        this.random_first_pieces = random_first_pieces;
+        this.random              = new Random();
+
+        // Shuffle so that pieces with the same availability are picked in random order
+        for (int i = 0; i < no_of_pieces; i++)
+            pieces[i] = i;
+        for (int i = no_of_pieces - 1; i > 0; i--)
+            Swap(i, random.nextInt(i + 1));
+
+        // Every piece starts in bucket 0, all other buckets are empty
+        for (int a = 1; a < bucket_start.length; a++)
+            bucket_start[a] = no_of_pieces;
+        for (int a = 1; a < done_bucket; a++)
+            bucket_bits[a] = new long[no_of_words];
+        for (int i = 0; i < no_of_pieces; i++)
+            wanted[i >>> 6] |= 1L << i;
+    }
+
+    private void Swap(int i, int j) {
+        int piece_i = pieces[i];
+        int piece_j = pieces[j];
+        pieces[i] = piece_j;
+        pieces[j] = piece_i;
+        position[piece_j] = i;
+        position[piece_i] = j;
+    }
+
+    // Swap the piece with the last one of its bucket and shrink the bucket by one
+    private void MoveUp(int index) {
+        int a = availability[index];
+        int last = bucket_start[a + 1] - 1;
+        Swap(position[index], last);
+        bucket_start[a + 1]--;
+        availability[index] = a + 1;
+        MoveBit(index, a, a + 1);
+    }
+
+    // Swap the piece with the first one of its bucket and start the bucket one later
+    private void MoveDown(int index) {
+        int a = availability[index];
+        Swap(position[index], bucket_start[a]);
+        bucket_start[a]++;
+        availability[index] = a - 1;
+        MoveBit(index, a, a - 1);
+    }
+
+    // Bucket 0 and the done bucket are never picked from and have no bits
+    private void MoveBit(int index, int from, int to) {
+        long mask = 1L << index;
+        if (bucket_bits[from] != null)
+            bucket_bits[from][index >>> 6] &= ~mask;
+        if (to < done_bucket && bucket_bits[to] != null)
+            bucket_bits[to][index >>> 6] |= mask;
+    }
+
+    // Move the piece to the done bucket, where neither picks nor HAVEs look at it
+    private void Park(int index) {
+        wanted[index >>> 6] &= ~(1L << index);
+        while (availability[index] < done_bucket)
+            MoveUp(index);
+    }
+
+    protected void OnAvailabilityChanged(int index, int delta) {
+        // Requested and received pieces stay in the done bucket
+        if (availability[index] == done_bucket)
+            return;
+        if (delta > 0 && availability[index] + 1 < done_bucket)
+            MoveUp(index);
+        else if (delta < 0 && availability[index] > 0)
+            MoveDown(index);
+    }
+
+    // A started piece is never picked again, a piece failing verification stays started
+    protected void OnPieceRequested(int index) {
+        Park(index);
+    }
+
+    protected void OnPieceReceived(int index) {
+        Park(index);
+    }
+
+    protected int SelectPiece(PieceBitfield neighbor_bitfield) {
+        // Pieces no neighbor has (bucket 0) and parked pieces can be skipped
+        if (bucket_start[1] >= bucket_start[done_bucket])
+            return -1;
+        if (no_of_received < random_first_pieces)
+            return RandomPiece(neighbor_bitfield, wanted);
+
+        for (int a = 1; a < done_bucket; a++) {
+            int start = bucket_start[a];
+            int end   = bucket_start[a + 1];
+            if (start == end)
+                continue;
+            int index = end - start <= wanted.length ? ScanBucket(neighbor_bitfield, start, end)
+                    : RandomPiece(neighbor_bitfield, bucket_bits[a]);
+            if (index != -1)
+                return index;
+        }
+        return -1;
+    }
+
+    // First piece of pieces[start .. end) the neighbor has, -1 if none
+    private int ScanBucket(PieceBitfield neighbor_bitfield, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (neighbor_bitfield.Get(pieces[i]))
+                return pieces[i];
+        }
+        return -1;
+    }
+
+    // A piece of bits the neighbor has, -1 if none. The words are intersected from a random one on
+    // and a random piece of the first match is taken, so that neighbors asked at the same time
+    // are not all asked for the lowest piece.
+    private int RandomPiece(PieceBitfield neighbor_bitfield, long[] bits) {
+        int first = random.nextInt(bits.length);
+        for (int i = 0; i < bits.length; i++) {
+            int w = first + i < bits.length ? first + i : first + i - bits.length;
+            long matches = bits[w] & neighbor_bitfield.GetWord(w);
+            if (matches != 0) {
+                int shift = random.nextInt(64);
+                return (w << 6) + ((Long.numberOfTrailingZeros(Long.rotateRight(matches, shift)) + shift) & 63);
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,43 @@
+import java.util.concurrent.atomic.LongAdder;
+
+// RateMeter turns a byte counter into a transfer rate. The event loops add the bytes of every piece
+// sent or received, and the choker calls Tick() once per unchoking interval to fold the bytes of the
+// interval into an exponentially weighted moving average, so one slow interval doesn't reset a peer.
+public class RateMeter {
+    private final LongAdder bytes;      // Bytes counted since the last Tick()
+    private final double weight;        // Weight of the latest interval in the average
+    private volatile double rate;       // Smoothed rate in bytes per second
+    private volatile long total;        // All the bytes counted so far
+    private boolean started;
+
+    public RateMeter(double weight) {
+        this.bytes  = new LongAdder();
+        this.weight = weight;
+    }
+
+    // Count transferred bytes, called from the event loops
+    public void Add(long count) {
+        bytes.add(count);
+    }
+
+    // Close the interval of the given length and update the average, called from the choker only
+    public double Tick(double seconds) {
+        long count = bytes.sumThenReset();
+        total += count;
+        double sample = seconds > 0 ? count / seconds : 0;
+        // The first interval sets the rate, later ones are blended in
+        rate    = started ? weight * sample + (1 - weight) * rate : sample;
+        started = true;
+        return rate;
+    }
+
+    // Smoothed rate in bytes per second as of the last Tick()
+    public double GetRate() {
+        return rate;
+    }
+
+    // Total bytes as of the last Tick()
+    public long GetTotal() {
+        return total;
+    }
+}
@@ -1,9 +1,8 @@
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
-import java.util.Map;
 import java.util.Random;
-import static java.lang.System.exit;
 
 public class SelectNeighbors extends Thread {
     private peerProcess host_peer;
@@ -16,73 +15,76 @@ public class SelectNeighbors extends Thread {
         // Read the time interval 'P' and preferred neighbors 'K'
         float p = Float.parseFloat(host_peer.config_params.get("UnchokingInterval"));
         int k = Integer.parseInt(host_peer.config_params.get("NumberOfPreferredNeighbors"));
+        long last_tick = System.nanoTime();
         try {
-            while(true) {
+            while(host_peer.IsRunning()) {
                 // If there is atleast one interested neighbor proceed to select min(k, interested)
                 if(host_peer.neighbors_interested_in_host != null) {
 
-                    // Random generator for the case when host has file
                     Random random = new Random();
                     boolean host_has_file = host_peer.host_details.has_file;
 
+                    // Close the interval on every neighbor's rate meters, the sleep may overshoot 'p'
+                    long now = System.nanoTime();
+                    host_peer.UpdateTransferRates((now - last_tick) / 1e9);
+                    last_tick = now;
+
                     // Store all interested neighbors in a list
                     ArrayList<Integer> interested_neighs = new ArrayList<>();
                     
                     // Find all interested neighbors
-                    for(Map.Entry<Integer, Boolean> entry : host_peer.neighbors_interested_in_host.entrySet()) {
-                        int peer_id = entry.getKey();
-                        boolean interested = entry.getValue();
-                        if(interested) 
+                    for(int peer_id : host_peer.neighbors_interested_in_host.Keys()) {
+                        if(host_peer.neighbors_interested_in_host.Is(peer_id))
                             interested_neighs.add(peer_id);
                     }
 
-                    // Calculate download rate for all neighbors
+                    // Shuffle first so that neighbors with equal rates (e.g. the first interval) are picked randomly
+                    Collections.shuffle(interested_neighs, random);
                     int interested_count = interested_neighs.size();
                     
-                    float[][] download_rates = new float[interested_count][2];
+                    double[][] transfer_rates = new double[interested_count][2];
 
-                    // If host has file, download rate is randomly assigned else computed
+                    // Leecher rewards the neighbors it downloads from fastest (tit-for-tat), the seeder
+                    // has nothing to download so it prefers the neighbors that take its pieces fastest
                     int i = 0;
                     for(int peer_id: interested_neighs) {
-                        download_rates[i][0] = peer_id;
-                        download_rates[i][1] = host_has_file ?
-                        random.nextInt(1000) :
-                        host_peer.neighbor_downloads.getOrDefault(peer_id, 0)/p;
+                        PeerDetails neighbor = host_peer.neighbors_list.get(peer_id);
+                        transfer_rates[i][0] = peer_id;
+                        transfer_rates[i][1] = host_has_file ?
+                        neighbor.upload_rate.GetRate() :
+                        neighbor.download_rate.GetRate();
                         i++;
                     }
                     
-                    // Sort on download rates in descending order
-                    Arrays.sort(download_rates, Comparator.comparing(pair -> pair[1], Comparator.reverseOrder()));
+                    // Sort on transfer rates in descending order, the sort is stable so ties keep the shuffled order
+                    Arrays.sort(transfer_rates, Comparator.comparing(pair -> pair[1], Comparator.reverseOrder()));
 
                     // Unchoke top 'k' peers and choke remaining
                     for(i = 0; i < interested_count; i++) {
-                        int peer_id = (int) download_rates[i][0];
-                        host_peer.unchoked_by_host.put(peer_id, (i < k) ? true : false);
+                        int peer_id = (int) transfer_rates[i][0];
+                        host_peer.unchoked_by_host.Set(peer_id, i < k);
                     }
 
                     // Generate log
                     String unchoke_list = "";
-                    for(Map.Entry<Integer, Boolean> entry : host_peer.unchoked_by_host.entrySet()) {
-                        int peer_id = entry.getKey();
-                        boolean unchoked = entry.getValue();
-                        if(unchoked) 
+                    for(int peer_id : host_peer.unchoked_by_host.Keys()) {
+                        if(host_peer.unchoked_by_host.Is(peer_id))
                             unchoke_list += ", " + peer_id;
                     }
                     if(unchoke_list.length() > 0)
                         host_peer.logger.log("has the preferred neighbors" + unchoke_list.substring(1));
-                    
-                    // Clear downloads to record new values for the next interval
-                    host_peer.neighbor_downloads.clear();
-                    
-                    // Terminate once host checks the file count
-                    if(host_peer.host_details.has_file && host_peer.completed_peer_files >= host_peer.neighbors_list.size()){
-                        exit(0);         
-                    }
+
+                    // Let the connections send CHOKE/UNCHOKE for the new preferred neighbors
+                    host_peer.BroadcastChokeUnchoke();
+
                     // Sleep for interval 'p'
                     Thread.sleep((int)p * 1000);
                 }
             }
         } catch(InterruptedException e) {
+            // Interrupted by Shutdown()
+            if (!host_peer.IsRunning())
+                return;
             System.out.println("Exception in SelectNeighbors, maybe sleep()");
             e.printStackTrace();
         }
@@ -1,6 +1,4 @@
-import java.util.Map;
 import java.util.Random;
-import static java.lang.System.exit;
 
 public class SelectOptNeighbor extends Thread{
     private peerProcess host_peer;
@@ -14,7 +12,7 @@ public class SelectOptNeighbor extends Thread{
         float m = Float.parseFloat(host_peer.config_params.get("OptimisticUnchokingInterval"));
         
         try {
-            while(true) {
+            while(host_peer.IsRunning()) {
                 // If there is atleast one interested neighbor proceed to select min(k, interested)
                 if(host_peer.neighbors_interested_in_host != null) {
 
@@ -26,16 +24,14 @@ public class SelectOptNeighbor extends Thread{
                     int opt_neighbor=0;
                     
                     // Find all inetrested neighbors
-                    for(Map.Entry<Integer, Boolean> entry : host_peer.neighbors_interested_in_host.entrySet()) {
-                        int peer_id = entry.getKey();
-                        boolean interested = entry.getValue();
-                        if(interested){
+                    for(int peer_id : host_peer.neighbors_interested_in_host.Keys()) {
+                        if(host_peer.neighbors_interested_in_host.Is(peer_id)){
                             int rand = random.nextInt(1000);
                             // Increasing priority if peer is not already optimistically selected
                             if(peer_id != host_peer.opt_neighbor){
                                 rand = rand + 1000;
                                 // Increasing priority if peer is choked
-                                if(!host_peer.unchoked_by_host.get(peer_id)){
+                                if(!host_peer.unchoked_by_host.Is(peer_id)){
                                     rand = rand + 1000;
                                 }
                             }
@@ -50,18 +46,16 @@ public class SelectOptNeighbor extends Thread{
                     host_peer.opt_neighbor = opt_neighbor;
                     if(opt_neighbor != 0)
                         host_peer.logger.log("has the optimistically unchocked neighbor " + opt_neighbor);
-
-                    // Terminate once host checks the file count
-                    if(host_peer.host_details.has_file && host_peer.completed_peer_files >= host_peer.neighbors_list.size()){
-                        exit(0);         
-                    }
-
+                    host_peer.BroadcastChokeUnchoke();
 
                     // Sleep for interval 'm'
                     Thread.sleep((int)m * 1000);
                 }
             }
         } catch(InterruptedException e) {
+            // Interrupted by Shutdown()
+            if (!host_peer.IsRunning())
+                return;
             System.out.println("Exception in SelectOptNeighbor, maybe sleep()");
             e.printStackTrace();
         }
@@ -0,0 +1,347 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+// SelectorConnection is a PeerConnection on a non-blocking SocketChannel. All reads, writes and
+// message handling for the connection happen on the EventLoop it is registered with.
+//
+// Outgoing messages wait in two queues until the socket is writable. Control messages (everything
+// but PIECE) are encoded into pooled buffers, many to a buffer, and are written before the queued
+// PIECEs with one gathering write, so a HAVE or CHOKE never waits behind megabytes of blocks. Only
+// a PIECE already partly written goes first, frames are never interleaved. When the queued PIECEs
+// exceed MaxQueuedPieceBytes the connection stops reading, and so stops taking new REQUESTs, until
+// half of them are written: a slow neighbor is held back by TCP flow control.
+public class SelectorConnection extends PeerConnection {
+    static final int MESSAGE_BUFFER_SIZE = 4096;        // Pooled buffers for the messages other than PIECE
+    private static final int MAX_GATHER = 16;           // Control buffers written by one gathering write
+    private final EventLoop event_loop;
+    private final ArrayDeque<ByteBuffer> control_queue; // Encoded messages other than PIECE, written first
+    private final ArrayDeque<PieceTransfer> piece_queue;
+    private final ByteBuffer[] gather;
+    private SelectionKey key;
+    private ByteBuffer open_buffer;                     // Last queued pooled buffer, still taking messages
+    private volatile long queued_piece_bytes;           // Block bytes of the PIECEs in piece_queue, only written by the loop
+    private boolean reading_paused;
+    private boolean closing;                            // No more messages are queued, shut down the output once written
+    private boolean output_shut;                        // Everything is written, waiting for the neighbor to close
+    private boolean upload_paced;                       // The next PIECE waits for the upload limits, a Flush() is scheduled
+
+    public SelectorConnection(Session session, SocketChannel channel, EventLoop event_loop,
+                              HandshakeListener handshake_listener) throws IOException {
+        super(session, channel, handshake_listener);
+        this.event_loop    = event_loop;
+        this.control_queue = new ArrayDeque<>();
+        this.piece_queue   = new ArrayDeque<>();
+        this.gather        = new ByteBuffer[MAX_GATHER];
+        channel.configureBlocking(false);
+    }
+
+    // Start listening for the neighbor's handshake on the event loop
+    public void Register() {
+        event_loop.Execute(() -> {
+            try {
+                key = event_loop.Register(channel, SelectionKey.OP_READ, this);
+            } catch (IOException e) {
+                e.printStackTrace();
+                Close();
+            }
+        });
+    }
+
+    // Run the task on this connection's event loop
+    public void Execute(Runnable task) {
+        event_loop.Execute(task);
+    }
+
+    public void Schedule(Runnable task, long delay_nanos) {
+        event_loop.Schedule(task, delay_nanos);
+    }
+
+    // Queue the raw bytes (the handshake) and write as much as the socket accepts without blocking
+    public void Send(byte[] msg) {
+        if (!event_loop.InEventLoop()) {
+            event_loop.Execute(() -> Send(msg));
+            return;
+        }
+        if (!channel.isOpen() || closing)
+            return;
+        CloseOpenBuffer();
+        control_queue.add(ByteBuffer.wrap(msg));
+        Flush();
+    }
+
+    // Send a message without payload (CHOKE, UNCHOKE, INTERESTED, NOTINTERESTED)
+    public void Send(MessageType message_type) {
+        if (!event_loop.InEventLoop()) {
+            event_loop.Execute(() -> Send(message_type));
+            return;
+        }
+        ByteBuffer out = Reserve(message_type, Message.FrameSize(0));
+        if (out == null)
+            return;
+        Message.Encode(out, message_type);
+        Flush();
+    }
+
+    // Send a message with a 4-byte payload (HAVE)
+    public void Send(MessageType message_type, int value) {
+        if (!event_loop.InEventLoop()) {
+            event_loop.Execute(() -> Send(message_type, value));
+            return;
+        }
+        ByteBuffer out = Reserve(message_type, Message.FrameSize(4));
+        if (out == null)
+            return;
+        Message.Encode(out, message_type, value);
+        Flush();
+    }
+
+    // Send a REQUEST or CANCEL for a block
+    public void Send(MessageType message_type, Block block) {
+        if (!event_loop.InEventLoop()) {
+            event_loop.Execute(() -> Send(message_type, block));
+            return;
+        }
+        ByteBuffer out = Reserve(message_type, Message.FrameSize(12));
+        if (out == null)
+            return;
+        Message.Encode(out, message_type, block);
+        Flush();
+    }
+
+    // Send a message with an arbitrary payload (BITFIELD), a payload too big for a pooled buffer
+    // gets a buffer of its own
+    public void Send(MessageType message_type, byte[] payload) {
+        if (!event_loop.InEventLoop()) {
+            event_loop.Execute(() -> Send(message_type, payload));
+            return;
+        }
+        if (Message.FrameSize(payload.length) > MESSAGE_BUFFER_SIZE) {
+            host_peer.message_stats.CountSent(message_type);
+            Send(new Message(message_type, payload).BuildMessageByteArray());
+            return;
+        }
+        ByteBuffer out = Reserve(message_type, Message.FrameSize(payload.length));
+        if (out == null)
+            return;
+        Message.Encode(out, message_type, payload);
+        Flush();
+    }
+
+    // Buffer to encode the next message into: the last queued pooled buffer while it has room and
+    // has not started to be written, else a new buffer from the event loop's pool. Messages sent
+    // while the socket is busy are coalesced into one buffer. Returns null if the connection is closed
+    // or closing.
+    private ByteBuffer Reserve(MessageType message_type, int frame_size) {
+        if (!channel.isOpen() || closing)
+            return null;
+        host_peer.message_stats.CountSent(message_type);
+        if (open_buffer == null || open_buffer.remaining() < frame_size) {
+            CloseOpenBuffer();
+            open_buffer = event_loop.GetMessagePool().Acquire();
+            control_queue.add(open_buffer);
+        }
+        return open_buffer;
+    }
+
+    // No more messages go into the open buffer, switch it to reading
+    private void CloseOpenBuffer() {
+        if (open_buffer != null) {
+            open_buffer.flip();
+            open_buffer = null;
+        }
+    }
+
+    // Queue a PIECE message whose block is sent from the cached piece or from the file with
+    // transferTo. Only the 13-byte header is built, in a buffer taken from the event loop's pool.
+    public void SendPiece(Block block, FileChannel file_channel, long position, ByteBuffer data) {
+        if (!event_loop.InEventLoop()) {
+            event_loop.Execute(() -> SendPiece(block, file_channel, position, data));
+            return;
+        }
+        if (!channel.isOpen() || closing)
+            return;
+        host_peer.message_stats.CountSent(MessageType.PIECE);
+        ByteBuffer header = event_loop.GetHeaderPool().Acquire();
+        Message.EncodePieceHeader(header, block);
+        header.flip();
+        piece_queue.add(new PieceTransfer(block, header, file_channel, position, data));
+        queued_piece_bytes += block.length;
+        Flush();
+    }
+
+    // Remove a queued PIECE the neighbor no longer wants, unless it is already partly written
+    public void CancelPiece(int index, int offset) {
+        piece_queue.removeIf(transfer -> transfer.block.index == index && transfer.block.offset == offset
+                && DropPiece(transfer));
+    }
+
+    // Remove the queued PIECEs not started yet, the neighbor drops its requests when choked
+    public void DropQueuedPieces() {
+        piece_queue.removeIf(this::DropPiece);
+    }
+
+    public long GetQueuedPieceBytes() {
+        return queued_piece_bytes;
+    }
+
+    private boolean DropPiece(PieceTransfer transfer) {
+        if (!transfer.NotStarted())
+            return false;
+        queued_piece_bytes -= transfer.block.length;
+        event_loop.GetHeaderPool().Release(transfer.header);
+        return true;
+    }
+
+    private void Flush() {
+        try {
+            while (true) {
+                PieceTransfer transfer = piece_queue.peek();
+                // Control messages first, unless a PIECE is partly written
+                if (!control_queue.isEmpty() && (transfer == null || transfer.NotStarted())) {
+                    // Socket buffer is full, wait for OP_WRITE
+                    if (!WriteControlMessages())
+                        break;
+                    continue;
+                }
+                if (transfer == null || !AdmitPiece(transfer) || !transfer.TransferTo(channel))
+                    break;
+                piece_queue.poll();
+                queued_piece_bytes -= transfer.block.length;
+                event_loop.GetHeaderPool().Release(transfer.header);
+                message_handler.neighbor_peer.upload_rate.Add(transfer.block.length);
+                message_handler.neighbor_peer.bytes_sent.Add(transfer.block.length);
+                message_handler.neighbor_peer.pieces_sent.Increment();
+            }
+            // Everything is written: send FIN but keep reading until the neighbor closes its side.
+            // Closing a socket with unread data resets the connection, and the neighbor could lose
+            // the last messages (e.g. the HAVEs) before reading them.
+            if (closing && !output_shut && control_queue.isEmpty() && piece_queue.isEmpty()) {
+                channel.shutdownOutput();
+                output_shut = true;
+            }
+            UpdateInterestOps();
+        } catch (IOException | CancelledKeyException e) {
+            Close();
+        }
+    }
+
+    // A PIECE is written once the upload limits (MaxUploadRate, MaxUploadRatePerPeer) have room
+    // for it, else Flush() is scheduled for when they will. Control messages are not limited.
+    private boolean AdmitPiece(PieceTransfer transfer) {
+        if (transfer.admitted)
+            return true;
+        if (upload_paced)
+            return false;
+        PeerDetails neighbor_peer = message_handler.neighbor_peer;
+        long delay = host_peer.UploadDelay(neighbor_peer);
+        if (delay > 0) {
+            upload_paced = true;
+            event_loop.Schedule(() -> {
+                upload_paced = false;
+                if (channel.isOpen())
+                    Flush();
+            }, Math.min(delay, TokenBucket.MAX_WAIT_NANOS));
+            return false;
+        }
+        host_peer.TakeUpload(neighbor_peer, transfer.block.length);
+        transfer.admitted = true;
+        return true;
+    }
+
+    // Write the queued control messages with one gathering write. Returns true if they were all
+    // written, false if the socket buffer filled up.
+    private boolean WriteControlMessages() throws IOException {
+        CloseOpenBuffer();
+        int length = 0;
+        for (ByteBuffer buffer : control_queue) {
+            if (length == gather.length)
+                break;
+            gather[length++] = buffer;
+        }
+        channel.write(gather, 0, length);
+        boolean written = true;
+        for (int i = 0; i < length; i++) {
+            if (gather[i].hasRemaining())
+                written = false;
+            else if (written) {
+                control_queue.poll();
+                // Pooled buffers are the direct ones, raw messages are wrapped arrays
+                if (gather[i].isDirect())
+                    event_loop.GetMessagePool().Release(gather[i]);
+            }
+            gather[i] = null;
+        }
+        return written;
+    }
+
+    // Ask for OP_WRITE only while there is something left to write and not held back by the upload
+    // limits, and for OP_READ unless the queued PIECEs hold reading back
+    private void UpdateInterestOps() {
+        if (key == null)
+            return;
+        if (queued_piece_bytes > max_queued_piece_bytes)
+            reading_paused = true;
+        else if (queued_piece_bytes <= max_queued_piece_bytes / 2)
+            reading_paused = false;
+        int ops = reading_paused ? 0 : SelectionKey.OP_READ;
+        if (!control_queue.isEmpty() || (!piece_queue.isEmpty() && !upload_paced))
+            ops |= SelectionKey.OP_WRITE;
+        if (key.interestOps() != ops)
+            key.interestOps(ops);
+    }
+
+    // Called by the event loop when the selector reports the channel as ready
+    public void HandleReadyOps(SelectionKey ready_key) {
+        try {
+            if (ready_key.isValid() && ready_key.isWritable())
+                Flush();
+            if (ready_key.isValid() && ready_key.isReadable())
+                Read();
+        } catch (IOException | CancelledKeyException e) {
+            System.out.println("Disconnect with Peer");
+            Close();
+        }
+    }
+
+    private void Read() throws IOException {
+        if (frame_decoder.ReadFrom(channel) == -1) {
+            Close();
+            return;
+        }
+        HandleReceived();
+    }
+
+    // Must be called on the event loop. Messages sent from now on are dropped, those received are
+    // still handled until the neighbor closes the connection.
+    public void CloseGracefully() {
+        if (!channel.isOpen())
+            return;
+        if (message_handler != null)
+            message_handler.RelayHaveMessages();
+        closing = true;
+        Flush();
+    }
+
+    public void Close() {
+        if (!channel.isOpen())
+            return;
+        try {
+            if (key != null)
+                key.cancel();
+            channel.close();
+            control_queue.clear();
+            piece_queue.clear();
+            open_buffer = null;
+        } catch (IOException ioException) {
+            ioException.printStackTrace();
+        }
+        // Requests sent on this connection will never be answered
+        if (message_handler != null)
+            message_handler.HandleDisconnect();
+    }
+}
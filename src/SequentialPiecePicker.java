@@ -0,0 +1,17 @@
+import java.util.BitSet;
+
+// Requests pieces in file order, the lowest missing piece the neighbor has comes first
+public class SequentialPiecePicker extends PiecePicker {
+
+    public SequentialPiecePicker(int no_of_pieces) {
+        super(no_of_pieces);
+    }
+
+    protected int SelectPiece(PieceBitfield neighbor_bitfield) {
+        for (int i = received.nextClearBit(0); i < no_of_pieces; i = received.nextClearBit(i + 1)) {
+            if (!requested.get(i) && neighbor_bitfield.Get(i))
+                return i;
+        }
+        return -1;
+    }
+}
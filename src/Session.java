@@ -0,0 +1,241 @@
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Session is everything a peer process shares between the files (torrents) it serves: the
+// listening port, the event loops or the executor of the connections with their buffer pools,
+// the pool of workers verifying pieces, the disk writer, the piece cache and the log. Every
+// torrent is a peerProcess with its own file, neighbors, bitfields and choking, and its own
+// connections to the neighbors in its swarm. The handshake carries the torrent's content id, so
+// that PeerServer can hand an incoming connection to the right torrent. A peer serving a single
+// file has a session of one torrent.
+public class Session {
+    public final Integer peer_id;
+    public final HashMap<String, String> config_params; // Common.cfg, the defaults of every torrent
+    public final Logger logger;
+    public final TokenBucket upload_limit;              // MaxUploadRate, the PIECEs sent by all torrents together
+    public final TokenBucket download_limit;            // MaxDownloadRate, the blocks requested by all torrents together
+    public PieceCache piece_cache;                      // Pieces of all torrents, null if PieceCacheBytes is 0
+    public DiskWriter disk_writer;                      // Writes the received blocks of all torrents
+    public final Metrics metrics;                       // Metrics of all torrents, see MetricsServer and MetricsDumper
+    private MetricsServer metrics_server;
+    private MetricsDumper metrics_dumper;
+    private final ConcurrentHashMap<Integer, peerProcess> torrents; // Running torrents by content id
+    private final ArrayList<peerProcess> members;       // Torrents created in the session and not stopped yet
+    private EventLoop[] event_loops;                    // Small fixed set of threads serving all neighbor connections
+    private final AtomicInteger next_event_loop;
+    private ExecutorService connection_executor;        // Reader and writer tasks of the connections in ConnectionMode virtual
+    private ThreadPoolExecutor storage_workers;         // Verify the pieces of every torrent, see PieceVerifier
+    private PeerServer peer_server;
+    private ConfigWatcher config_watcher;
+    private boolean stopped;
+
+    public Session(int id) {
+        peer_id         = id;
+        config_params   = new HashMap<>();
+        logger          = new Logger(peer_id.toString());
+        upload_limit    = new TokenBucket(0);
+        download_limit  = new TokenBucket(0);
+        torrents        = new ConcurrentHashMap<>();
+        members         = new ArrayList<>();
+        next_event_loop = new AtomicInteger(0);
+        metrics         = new Metrics();
+    }
+
+    // The running torrent a handshake with this content id is for, null if there is none
+    public peerProcess GetTorrent(int content_id) {
+        return torrents.get(content_id);
+    }
+
+    // Workers verifying received pieces, created with HashWorkerThreads threads for the first torrent
+    // with a manifest. The queue is bounded, see PieceVerifier.
+    public synchronized ThreadPoolExecutor GetStorageWorkers() {
+        if (storage_workers == null) {
+            int no_of_threads = Math.max(1, Integer.parseInt(config_params.getOrDefault("HashWorkerThreads",
+                    String.valueOf(Runtime.getRuntime().availableProcessors()))));
+            storage_workers = new ThreadPoolExecutor(no_of_threads, no_of_threads, 0, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(64), task -> {
+                        Thread worker = new Thread(task, "PieceVerifier-" + peer_id);
+                        worker.setDaemon(true);
+                        return worker;
+                    }, new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        return storage_workers;
+    }
+
+    // Called by every torrent when it is created, the session stops with the last one
+    public synchronized void Add(peerProcess torrent) {
+        members.add(torrent);
+    }
+
+    // Start serving the torrent. The first one starts the event loops and the server, on the port of
+    // the host in its PeerInfo; the torrents started later share them.
+    public synchronized void Start(peerProcess torrent) throws IOException {
+        if (stopped)
+            throw new IllegalStateException("Session of peer " + peer_id + " is stopped");
+        if (torrents.putIfAbsent(torrent.content_id, torrent) != null)
+            throw new IllegalArgumentException("Two torrents with content id " + torrent.content_id
+                    + ", set ContentId for one of them");
+        if (peer_server != null)
+            return;
+        upload_limit.SetRate(Long.parseLong(config_params.getOrDefault("MaxUploadRate", "0")));
+        download_limit.SetRate(Long.parseLong(config_params.getOrDefault("MaxDownloadRate", "0")));
+        long cache_bytes = Long.parseLong(config_params.getOrDefault("PieceCacheBytes", "16777216"));
+        if (cache_bytes > 0)
+            piece_cache = new PieceCache(cache_bytes, Integer.parseInt(config_params.getOrDefault("PieceSize", "16384")));
+        disk_writer = new DiskWriter("DiskWriter-" + peer_id, logger,
+                Integer.parseInt(config_params.getOrDefault("DiskWriterThreads", "1")),
+                Long.parseLong(config_params.getOrDefault("MaxWriteBehindBytes", "16777216")),
+                config_params.getOrDefault("FsyncPolicy", "close"),
+                Integer.parseInt(config_params.getOrDefault("FsyncIntervalSeconds", "5")));
+        StartMetrics();
+        config_watcher = new ConfigWatcher(this, "Common.cfg");
+        config_watcher.start();
+        if (config_params.getOrDefault("ConnectionMode", "selector").equals("virtual"))
+            connection_executor = VirtualThreadConnection.NewExecutor("Connection-" + peer_id, logger);
+        else
+            StartEventLoops();
+        peer_server = new PeerServer(this, torrent.host_details.peer_port);
+        peer_server.start();
+    }
+
+    // Change the rate limits while the peer runs, e.g. from ConfigWatcher. Takes the keys of
+    // ConfigWatcher.RATE_KEYS in bytes per second, 0 for no limit; the per peer limits apply to the
+    // neighbors of every torrent. Transfers held back pick up the new limits within 100 ms.
+    public void SetRateLimits(Map<String, String> rates) {
+        HashMap<String, Long> values = new HashMap<>();
+        for (Map.Entry<String, String> rate : rates.entrySet())
+            values.put(rate.getKey(), Long.parseLong(rate.getValue()));
+        ArrayList<peerProcess> torrents;
+        synchronized (this) {
+            torrents = new ArrayList<>(members);
+        }
+        if (values.containsKey("MaxUploadRate"))
+            upload_limit.SetRate(values.get("MaxUploadRate"));
+        if (values.containsKey("MaxDownloadRate"))
+            download_limit.SetRate(values.get("MaxDownloadRate"));
+        for (peerProcess torrent : torrents) {
+            if (values.containsKey("MaxUploadRatePerPeer"))
+                torrent.SetPeerUploadRate(values.get("MaxUploadRatePerPeer"));
+            if (values.containsKey("MaxDownloadRatePerPeer"))
+                torrent.SetPeerDownloadRate(values.get("MaxDownloadRatePerPeer"));
+        }
+        logger.log("changed the rate limits to " + values);
+    }
+
+    // Register the metrics shared by the torrents, serve them on MetricsPort and dump them to a file
+    // every MetricsDumpSeconds, 0 for neither
+    private void StartMetrics() {
+        metrics.AddGauge("p2p_disk_write_queue_bytes", "Received block bytes waiting to be written", "", disk_writer::GetQueuedBytes);
+        if (piece_cache != null) {
+            metrics.AddCounter("p2p_piece_cache_hits_total", "Blocks sent from the piece cache", "", piece_cache::GetHits);
+            metrics.AddCounter("p2p_piece_cache_misses_total", "Blocks sent from the file", "", piece_cache::GetMisses);
+            metrics.AddCounter("p2p_piece_cache_evictions_total", "Pieces evicted or not admitted", "", piece_cache::GetEvictions);
+            metrics.AddGauge("p2p_piece_cache_bytes", "Bytes of the cached pieces", "", piece_cache::GetCachedBytes);
+        }
+        int port = Integer.parseInt(config_params.getOrDefault("MetricsPort", "0"));
+        if (port > 0) {
+            try {
+                metrics_server = new MetricsServer(metrics, port);
+                metrics_server.Start();
+            } catch (IOException e) {
+                // The peer runs without the endpoint, e.g. when several peers share a machine
+                logger.log(Logger.Level.WARN, "cannot serve the metrics on port " + port + ": " + e);
+            }
+        }
+        int dump_seconds = Integer.parseInt(config_params.getOrDefault("MetricsDumpSeconds", "0"));
+        if (dump_seconds > 0) {
+            metrics_dumper = new MetricsDumper(this, dump_seconds);
+            metrics_dumper.start();
+        }
+    }
+
+    // Start the event loops which serve all neighbor connections, EventLoopThreads in Common.cfg
+    private void StartEventLoops() throws IOException {
+        int no_of_loops = Integer.parseInt(config_params.getOrDefault("EventLoopThreads",
+                String.valueOf(Math.min(2, Runtime.getRuntime().availableProcessors()))));
+        event_loops = new EventLoop[Math.max(1, no_of_loops)];
+        for (int i = 0; i < event_loops.length; i++) {
+            event_loops[i] = new EventLoop("EventLoop-" + peer_id + "-" + i);
+            event_loops[i].start();
+        }
+    }
+
+    // Pick the event loop for a new connection in round robin order
+    private EventLoop NextEventLoop() {
+        return event_loops[Math.floorMod(next_event_loop.getAndIncrement(), event_loops.length)];
+    }
+
+    // Connection for a new socket, served by an event loop or by tasks of its own (ConnectionMode in
+    // Common.cfg). It belongs to no torrent until the handshake tells which one.
+    public PeerConnection NewConnection(SocketChannel channel, HandshakeListener handshake_listener) throws IOException {
+        if (connection_executor != null)
+            return new VirtualThreadConnection(this, channel, connection_executor, handshake_listener);
+        return new SelectorConnection(this, channel, NextEventLoop(), handshake_listener);
+    }
+
+    // No more connections for the torrent, called once it stops
+    public void Remove(peerProcess torrent) {
+        torrents.remove(torrent.content_id, torrent);
+    }
+
+    // Called by a torrent once it has closed its connections. The last one stops the session: no
+    // new connections, the remaining ones (e.g. still waiting for a handshake) are closed once what
+    // is queued on them is written or after timeout_ms, and the buffered log lines are written out.
+    public void Stop(peerProcess torrent, long timeout_ms) throws IOException, InterruptedException {
+        synchronized (this) {
+            Remove(torrent);
+            members.remove(torrent);
+            if (piece_cache != null)
+                piece_cache.Remove(torrent.content_id);
+            if (!members.isEmpty() || stopped) {
+                metrics.Remove(Metrics.Labels("torrent", torrent.content_id));
+                return;
+            }
+            stopped = true;
+        }
+        if (peer_server != null) {
+            peer_server.Close();
+            peer_server.join();
+        }
+        if (config_watcher != null)
+            config_watcher.interrupt();
+        if (metrics_server != null)
+            metrics_server.Stop();
+        if (connection_executor != null) {
+            connection_executor.shutdown();
+            // Connections still writing or waiting for a handshake are cut, interrupting a blocked
+            // read or write closes the channel
+            if (!connection_executor.awaitTermination(timeout_ms, TimeUnit.MILLISECONDS))
+                connection_executor.shutdownNow();
+        }
+        for (int i = 0; event_loops != null && i < event_loops.length; i++)
+            event_loops[i].Shutdown(timeout_ms);
+        for (int i = 0; event_loops != null && i < event_loops.length; i++)
+            event_loops[i].join();
+        if (disk_writer != null)
+            disk_writer.Shutdown(timeout_ms);
+        if (storage_workers != null) {
+            storage_workers.shutdown();
+            storage_workers.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        if (piece_cache != null) {
+            piece_cache.Shutdown();
+            logger.log("piece cache: " + piece_cache.Stats());
+        }
+        // The last torrent's metrics are kept for the final dump
+        if (metrics_dumper != null) {
+            metrics_dumper.interrupt();
+            metrics_dumper.Dump();
+        }
+        logger.Close();
+    }
+}
@@ -0,0 +1,280 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * SwarmSimulator runs a whole swarm of peers in one JVM on loopback ports and reports how long
+ * every peer took to get the file, the aggregate throughput and the messages exchanged.
+ * Peers are set up like peerProcess.main() does, from the options below instead of PeerInfo.cfg;
+ * Common.cfg in the working directory, if present, provides the defaults. Files are created in
+ * the working directory (peer_<id>/, logs/) like for separate processes.
+ *
+ *   java SwarmSimulator [-peers 5] [-seeders 1] [-file-size bytes] [-piece-size bytes]
+ *                       [-latency-ms 0] [-bandwidth-kbps 0] [-link a-b:latency_ms:bandwidth_kbps]...
+ *                       [-timeout-s 120] [-log-level WARN] [-<Common.cfg key> value]...
+ *
+ * Latency is one-way and bandwidth is per link and direction, 0 for none. -link overrides them for
+ * the link between the a-th and b-th peer (counting from 1) and may be given several times.
+ */
+public class SwarmSimulator {
+    private static final int FIRST_PEER_ID = 1001;
+
+    private final HashMap<String, String> options;
+    private final HashMap<String, long[]> link_overrides; // "a-b" with a < b -> latency ms, bandwidth kbps
+    private final HashMap<String, String> config_params;
+    private final ArrayList<peerProcess> peers;
+    private final ArrayList<LinkProxy> proxies;
+    private int no_of_peers, no_of_seeders;
+
+    public SwarmSimulator(String[] args) {
+        options        = new HashMap<>();
+        link_overrides = new HashMap<>();
+        config_params  = new HashMap<>();
+        peers          = new ArrayList<>();
+        proxies        = new ArrayList<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("-"))
+                throw new IllegalArgumentException("Unexpected argument " + args[i]);
+            String key = args[i].substring(1);
+            if (key.equals("link")) {
+                String[] link = args[i + 1].split(":");
+                String[] ends = link[0].split("-");
+                int a = Integer.parseInt(ends[0]), b = Integer.parseInt(ends[1]);
+                link_overrides.put(Math.min(a, b) + "-" + Math.max(a, b),
+                        new long[] { Long.parseLong(link[1]), Long.parseLong(link[2]) });
+            } else {
+                options.put(key, args[i + 1]);
+            }
+        }
+    }
+
+    // Common.cfg values, overridden by the options that are Common.cfg keys
+    private void ReadConfig() throws IOException {
+        if (new File("Common.cfg").exists()) {
+            for (String line : Files.readAllLines(Paths.get("Common.cfg"))) {
+                String[] line_split = line.split(" ");
+                if (line_split.length == 2)
+                    config_params.put(line_split[0], line_split[1]);
+            }
+        }
+        config_params.putIfAbsent("NumberOfPreferredNeighbors", "2");
+        config_params.putIfAbsent("UnchokingInterval", "1");
+        config_params.putIfAbsent("OptimisticUnchokingInterval", "2");
+        config_params.putIfAbsent("FileName", "thefile");
+        config_params.putIfAbsent("FileSize", "10000000");
+        config_params.putIfAbsent("PieceSize", "16384");
+        config_params.put("FileSize", options.getOrDefault("file-size", config_params.get("FileSize")));
+        config_params.put("PieceSize", options.getOrDefault("piece-size", config_params.get("PieceSize")));
+        config_params.put("LogLevel", options.getOrDefault("log-level", "WARN"));
+        for (String key : options.keySet()) {
+            if (Character.isUpperCase(key.charAt(0)))
+                config_params.put(key, options.get(key));
+        }
+        no_of_peers   = Integer.parseInt(options.getOrDefault("peers", "5"));
+        no_of_seeders = Integer.parseInt(options.getOrDefault("seeders", "1"));
+    }
+
+    private long[] GetLink(int a, int b) {
+        long[] link = link_overrides.get(a + "-" + b);
+        if (link != null)
+            return link;
+        return new long[] { Long.parseLong(options.getOrDefault("latency-ms", "0")),
+                Long.parseLong(options.getOrDefault("bandwidth-kbps", "0")) };
+    }
+
+
+    // Create every peer the way peerProcess.main() does. A peer connects to the peers listed before
+    // it, through a LinkProxy when the link has a latency or a bandwidth limit.
+    private void SetUp() throws IOException {
+        new File("logs").mkdirs();
+        // The ports stay reserved until the proxies have taken theirs, a proxy could get one otherwise
+        int[] ports = new int[no_of_peers + 1];
+        ServerSocket[] reserved = new ServerSocket[no_of_peers + 1];
+        for (int i = 1; i <= no_of_peers; i++) {
+            reserved[i] = new ServerSocket(0);
+            ports[i] = reserved[i].getLocalPort();
+        }
+
+        String file_name = config_params.get("FileName");
+        long file_size   = Long.parseLong(config_params.get("FileSize"));
+        new File(file_name + ".hashes").delete();
+        for (int i = 1; i <= no_of_peers; i++) {
+            File dir = new File("peer_" + (FIRST_PEER_ID + i - 1));
+            dir.mkdirs();
+            new File(dir, file_name + ".bitfield").delete();
+            File file = new File(dir, file_name);
+            if (i > no_of_seeders)
+                file.delete();
+            else if (i == 1)
+                WriteRandomFile(file, file_size);
+            else
+                Files.copy(new File("peer_" + FIRST_PEER_ID, file_name).toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        for (int j = 1; j <= no_of_peers; j++) {
+            ArrayList<String> lines = new ArrayList<>();
+            for (int i = 1; i <= no_of_peers; i++) {
+                int port = ports[i];
+                long[] link = GetLink(Math.min(i, j), Math.max(i, j));
+                if (i < j && (link[0] > 0 || link[1] > 0)) {
+                    LinkProxy proxy = new LinkProxy(ports[i], link[0], link[1]);
+                    proxy.start();
+                    proxies.add(proxy);
+                    port = proxy.GetPort();
+                }
+                lines.add((FIRST_PEER_ID + i - 1) + " 127.0.0.1 " + port + " " + (i <= no_of_seeders ? 1 : 0));
+            }
+            peerProcess peer = new peerProcess(FIRST_PEER_ID + j - 1);
+            peer.config_params.putAll(config_params);
+            peer.logger.SetLevel(Logger.Level.valueOf(config_params.get("LogLevel")));
+            peer.SetPeerInfo(lines);
+            peer.SetBitField();
+            peer.HandleFile();
+            peers.add(peer);
+        }
+        for (int i = 1; i <= no_of_peers; i++)
+            reserved[i].close();
+    }
+
+    private static void WriteRandomFile(File file, long file_size) throws IOException {
+        if (file.length() == file_size)
+            return;
+        Random random = new Random(file_size);
+        byte[] buffer = new byte[1 << 16];
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(0);
+            for (long written = 0; written < file_size; written += buffer.length) {
+                random.nextBytes(buffer);
+                out.write(buffer, 0, (int) Math.min(buffer.length, file_size - written));
+            }
+        }
+    }
+
+    private static byte[] Digest(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[1 << 16];
+            int length;
+            while ((length = in.read(buffer)) != -1)
+                digest.update(buffer, 0, length);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Start all peers and wait until they shut themselves down, which they do once every peer has
+    // the file, or until the timeout
+    private long Run() throws IOException, InterruptedException {
+        long start_time = System.nanoTime();
+        for (peerProcess peer : peers)
+            peer.Start();
+        long deadline = start_time + TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("timeout-s", "120")));
+        for (peerProcess peer : peers) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || !peer.AwaitTermination(remaining, TimeUnit.NANOSECONDS))
+                break;
+        }
+        for (peerProcess peer : peers)
+            peer.Shutdown();
+        for (peerProcess peer : peers)
+            peer.AwaitTermination(10, TimeUnit.SECONDS);
+        // Write out the logs of peers which did not stop in time
+        for (peerProcess peer : peers)
+            peer.session.logger.Close();
+        for (LinkProxy proxy : proxies)
+            proxy.Close();
+        return start_time;
+    }
+
+    private void Report(long start_time) throws IOException {
+        String file_name = config_params.get("FileName");
+        long file_size   = Long.parseLong(config_params.get("FileSize"));
+        byte[] expected  = Digest(new File("peer_" + FIRST_PEER_ID, file_name));
+        MessageType[] types = Arrays.copyOf(MessageType.values(), MessageType.UNKNOWN.ordinal());
+
+        System.out.println();
+        System.out.printf("%d peers (%d seeders), file %d bytes, pieces %s bytes, blocks %s bytes%n", no_of_peers,
+                no_of_seeders, file_size, config_params.get("PieceSize"), config_params.getOrDefault("BlockSize", "16384"));
+        System.out.printf("%-6s %-8s %10s %10s %10s %10s", "peer", "status", "time (s)", "MB/s", "sent", "received");
+        for (MessageType type : types)
+            System.out.printf(" %9s", type.name().length() > 9 ? type.name().substring(0, 9) : type.name());
+        System.out.println();
+
+        long[] total_by_type = new long[types.length];
+        long total_sent = 0, last_completion = start_time;
+        int no_of_completed = 0;
+        for (int j = 0; j < peers.size(); j++) {
+            peerProcess peer = peers.get(j);
+            String status;
+            String time = "-", rate = "-";
+            if (j < no_of_seeders) {
+                status = "seeder";
+            } else if (peer.completion_time == 0) {
+                status = "MISSING";
+            } else {
+                boolean intact = Arrays.equals(expected, Digest(new File("peer_" + peer.peer_id, file_name)));
+                status = intact ? "done" : "CORRUPT";
+                double seconds = (peer.completion_time - start_time) / 1e9;
+                time = String.format("%.2f", seconds);
+                rate = String.format("%.2f", file_size / 1e6 / seconds);
+                last_completion = Math.max(last_completion, peer.completion_time);
+                if (intact)
+                    no_of_completed++;
+            }
+            long sent = 0, received = 0;
+            for (MessageType type : types) {
+                sent += peer.message_stats.GetSent(type);
+                received += peer.message_stats.GetReceived(type);
+            }
+            System.out.printf("%-6d %-8s %10s %10s %10d %10d", peer.peer_id, status, time, rate, sent, received);
+            for (int t = 0; t < types.length; t++) {
+                long count = peer.message_stats.GetSent(types[t]);
+                total_by_type[t] += count;
+                System.out.printf(" %9d", count);
+            }
+            System.out.println();
+            total_sent += sent;
+        }
+
+        System.out.printf("%-6s %-8s %10s %10s %10d %10s", "total", "", "", "", total_sent, "");
+        for (long count : total_by_type)
+            System.out.printf(" %9d", count);
+        System.out.println();
+
+        int no_of_leechers = no_of_peers - no_of_seeders;
+        double seconds = (last_completion - start_time) / 1e9;
+        System.out.printf("%d of %d leechers completed, last after %.2f s, aggregate throughput %.2f MB/s%n",
+                no_of_completed, no_of_leechers, seconds, seconds > 0 ? file_size * no_of_completed / 1e6 / seconds : 0.0);
+    }
+
+    public static void main(String args[]) throws IOException, InterruptedException {
+        SwarmSimulator simulator = new SwarmSimulator(args);
+        try {
+            simulator.ReadConfig();
+            simulator.SetUp();
+            long start_time = simulator.Run();
+            simulator.Report(start_time);
+        } catch (IOException | RuntimeException e) {
+            // Peers started before the failure would keep the JVM running
+            e.printStackTrace();
+            System.exit(1);
+        }
+        // A peer which did not shut down in time may have left threads behind
+        System.exit(0);
+    }
+}
@@ -0,0 +1,74 @@
+import java.util.concurrent.locks.ReentrantLock;
+
+// TokenBucket limits a transfer rate. Tokens (bytes) accrue at the rate, up to a burst of a quarter
+// of a second's worth, and sending or requesting a block takes its length. The bucket may go into
+// debt: a block is let through as long as there are tokens left, even if it is bigger than what is
+// left, and the next one waits until the debt is paid back. So any block size works with any rate
+// and the average stays at the rate. A rate of 0 means no limit; the rate can be changed any time.
+public class TokenBucket {
+    // A transfer held back waits at most this long before checking again, so that a new rate
+    // applies quickly
+    public static final long MAX_WAIT_NANOS = 100_000_000L;
+
+    private final ReentrantLock lock;
+    private volatile long rate;       // Bytes per second, 0 for no limit
+    private double tokens;            // Negative while in debt
+    private long last_refill;         // System.nanoTime() of the last refill
+
+    public TokenBucket(long rate) {
+        this.lock        = new ReentrantLock();
+        this.rate        = rate;
+        this.tokens      = rate / 4.0;
+        this.last_refill = System.nanoTime();
+    }
+
+    public long GetRate() {
+        return rate;
+    }
+
+    public void SetRate(long new_rate) {
+        lock.lock();
+        try {
+            Refill(System.nanoTime());
+            rate   = new_rate;
+            tokens = Math.min(tokens, new_rate / 4.0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Must be called with the lock held
+    private void Refill(long now) {
+        if (rate > 0)
+            tokens = Math.min(rate / 4.0, tokens + (now - last_refill) * rate / 1e9);
+        last_refill = now;
+    }
+
+    // Nanoseconds until bytes can be taken, 0 if they can be taken now
+    public long Delay() {
+        if (rate == 0)
+            return 0;
+        lock.lock();
+        try {
+            Refill(System.nanoTime());
+            if (tokens > 0 || rate == 0)
+                return 0;
+            return (long) (-tokens * 1e9 / rate) + 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Take the bytes of a block about to be sent or requested, after Delay() returned 0
+    public void Take(long bytes) {
+        if (rate == 0)
+            return;
+        lock.lock();
+        try {
+            Refill(System.nanoTime());
+            tokens -= bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,443 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+// VirtualThreadConnection is a PeerConnection on a blocking SocketChannel, served by a reader task
+// and a writer task of its own instead of an EventLoop (ConnectionMode virtual in Common.cfg).
+// The tasks run on virtual threads when the JVM has them (Java 21), so a peer can hold thousands
+// of connections, and on a cached pool of platform threads otherwise.
+//
+// The reader blocks in read() and handles the received messages under handler_lock, which makes
+// the lock the connection's context: tasks from Execute() run under it too, one at a time. Sends
+// from any thread only encode the message under write_lock, many to a pooled buffer like
+// SelectorConnection does, and queue it. The writer waits for messages and writes all queued
+// control messages (everything but PIECE) at once with a gathering write before the next PIECE,
+// so a HAVE or CHOKE never waits behind the queued blocks. While the queued PIECEs exceed
+// MaxQueuedPieceBytes the reader stops reading, and so stops taking new REQUESTs, and a slow
+// neighbor is held back by TCP flow control. The locks are ReentrantLocks so that a waiting
+// virtual thread does not pin its carrier thread.
+public class VirtualThreadConnection extends PeerConnection {
+    private static final int MAX_GATHER = 64;           // Buffers written by one gathering write
+
+    private final ExecutorService executor;
+    private final ReentrantLock handler_lock;
+    private final ConcurrentLinkedQueue<Runnable> pending_tasks;
+    private final AtomicBoolean tasks_scheduled;        // A task to run pending_tasks is submitted
+    private final ReentrantLock write_lock;             // Guards the queues, never held while writing
+    private final Condition queued;                     // Something was queued for the writer
+    private final Condition drained;                    // Queued PIECE bytes went down
+    private final ArrayDeque<ByteBuffer> control_queue; // Messages other than PIECE, written first
+    private final ArrayDeque<PieceTransfer> piece_queue;
+    private final BufferPool message_pool;              // Buffers the control messages are encoded into, under write_lock
+    private final BufferPool header_pool;               // 13-byte PIECE headers, under write_lock
+    private ByteBuffer open_buffer;                     // Last queued pooled buffer, still taking messages
+    private volatile long queued_piece_bytes;           // Written under write_lock
+    private boolean ending;                             // Writer stops once the queues are empty
+    private final AtomicBoolean closed;
+
+    public VirtualThreadConnection(Session session, SocketChannel channel, ExecutorService executor,
+                                   HandshakeListener handshake_listener) throws IOException {
+        super(session, channel, handshake_listener);
+        this.executor        = executor;
+        this.handler_lock    = new ReentrantLock();
+        this.pending_tasks   = new ConcurrentLinkedQueue<>();
+        this.tasks_scheduled = new AtomicBoolean(false);
+        this.write_lock      = new ReentrantLock();
+        this.queued          = write_lock.newCondition();
+        this.drained         = write_lock.newCondition();
+        this.control_queue   = new ArrayDeque<>();
+        this.piece_queue     = new ArrayDeque<>();
+        // One buffer being written while the next one fills up, the headers of the queued PIECEs
+        this.message_pool    = new BufferPool(SelectorConnection.MESSAGE_BUFFER_SIZE, 2);
+        this.header_pool     = new BufferPool(13, 64);
+        this.closed          = new AtomicBoolean(false);
+        channel.configureBlocking(true);
+    }
+
+    // Executor for the connection tasks: a virtual thread per task on Java 21, looked up by
+    // reflection as the peer is built for Java 17, else a cached pool of daemon platform threads.
+    // The fallback costs two platform threads per connection, and one per pending Schedule(), so
+    // it is logged as a warning.
+    public static ExecutorService NewExecutor(String name, Logger logger) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            logger.log(Logger.Level.WARN, "runs ConnectionMode virtual on platform threads, two per connection: Java "
+                    + Runtime.version().feature() + " has no virtual threads, they need Java 21");
+            AtomicInteger next_thread = new AtomicInteger(0);
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, name + "-" + next_thread.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    // Start the reader and the writer
+    public void Register() {
+        try {
+            executor.execute(this::ReadLoop);
+            executor.execute(this::WriteLoop);
+        } catch (RejectedExecutionException e) {
+            // The peer is shutting down
+            Close();
+        }
+    }
+
+    // A task of its own sleeps for the delay, on a virtual thread that costs next to nothing
+    public void Schedule(Runnable task, long delay_nanos) {
+        try {
+            executor.execute(() -> {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(delay_nanos);
+                } catch (InterruptedException e) {
+                    // The peer is shutting down
+                    return;
+                }
+                Execute(task);
+            });
+        } catch (RejectedExecutionException e) {
+            // The peer is shutting down
+        }
+    }
+
+    public void Execute(Runnable task) {
+        if (handler_lock.isHeldByCurrentThread()) {
+            task.run();
+            return;
+        }
+        pending_tasks.add(task);
+        if (tasks_scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::RunPendingTasks);
+            } catch (RejectedExecutionException e) {
+                // The executor is shut down, run the tasks here
+                RunPendingTasks();
+            }
+        }
+    }
+
+    private void RunPendingTasks() {
+        handler_lock.lock();
+        try {
+            // Tasks added from now on schedule another run
+            tasks_scheduled.set(false);
+            Runnable task;
+            while ((task = pending_tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        } finally {
+            handler_lock.unlock();
+        }
+    }
+
+    private void ReadLoop() {
+        try {
+            while (true) {
+                AwaitPieceQueue();
+                if (frame_decoder.ReadFrom(channel) == -1)
+                    break;
+                handler_lock.lock();
+                try {
+                    HandleReceived();
+                } finally {
+                    handler_lock.unlock();
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // Closed by the neighbor or by Close()
+        } catch (RuntimeException e) {
+            e.printStackTrace(System.out);
+        }
+        Close();
+    }
+
+    // Takes everything queued under write_lock and writes it without the lock: the control
+    // messages with one gathering write, else the next PIECE
+    private void WriteLoop() {
+        ByteBuffer[] buffers = new ByteBuffer[MAX_GATHER];
+        int no_of_buffers = 0;
+        try {
+            while (true) {
+                PieceTransfer transfer = null;
+                write_lock.lock();
+                try {
+                    // The buffers written last time go back to the pool
+                    ReleaseBuffers(buffers, no_of_buffers);
+                    no_of_buffers = 0;
+                    while (control_queue.isEmpty() && piece_queue.isEmpty() && !ending)
+                        queued.await();
+                    CloseOpenBuffer();
+                    while (no_of_buffers < MAX_GATHER && !control_queue.isEmpty())
+                        buffers[no_of_buffers++] = control_queue.poll();
+                    if (no_of_buffers == 0 && !piece_queue.isEmpty()) {
+                        // Wait for the upload limits to have room for the PIECE, a control
+                        // message queued meanwhile is written first
+                        long delay = host_peer.UploadDelay(message_handler.neighbor_peer);
+                        if (delay > 0) {
+                            queued.awaitNanos(Math.min(delay, TokenBucket.MAX_WAIT_NANOS));
+                            continue;
+                        }
+                        transfer = piece_queue.poll();
+                        host_peer.TakeUpload(message_handler.neighbor_peer, transfer.block.length);
+                    }
+                    // Written all that was queued before CloseGracefully()
+                    if (no_of_buffers == 0 && transfer == null)
+                        break;
+                } finally {
+                    write_lock.unlock();
+                }
+                WriteAll(buffers, no_of_buffers);
+                if (transfer != null)
+                    WritePiece(transfer);
+            }
+            // Send FIN, the reader closes the connection once the neighbor has closed its side too.
+            // Closing a socket with unread data resets the connection, and the neighbor could lose
+            // the last messages (e.g. the HAVEs) before reading them.
+            channel.shutdownOutput();
+            return;
+        } catch (IOException | InterruptedException e) {
+            // Closed by the neighbor or by Close()
+        }
+        Close();
+    }
+
+    // A blocking write may still return before all buffers are written
+    private void WriteAll(ByteBuffer[] buffers, int length) throws IOException {
+        int first = 0;
+        while (first < length) {
+            channel.write(buffers, first, length - first);
+            while (first < length && !buffers[first].hasRemaining())
+                first++;
+        }
+    }
+
+    // Pooled buffers are the direct ones, raw messages are wrapped arrays. Called under write_lock.
+    private void ReleaseBuffers(ByteBuffer[] buffers, int length) {
+        for (int i = 0; i < length; i++) {
+            if (buffers[i].isDirect())
+                message_pool.Release(buffers[i]);
+            buffers[i] = null;
+        }
+    }
+
+    private void WritePiece(PieceTransfer transfer) throws IOException {
+        // A blocking socket takes the whole block, past the end of the file TransferTo throws
+        while (!transfer.TransferTo(channel));
+        message_handler.neighbor_peer.upload_rate.Add(transfer.block.length);
+        message_handler.neighbor_peer.bytes_sent.Add(transfer.block.length);
+        message_handler.neighbor_peer.pieces_sent.Increment();
+        write_lock.lock();
+        try {
+            header_pool.Release(transfer.header);
+            queued_piece_bytes -= transfer.block.length;
+            drained.signalAll();
+        } finally {
+            write_lock.unlock();
+        }
+    }
+
+    // Wait while the queued PIECEs are over MaxQueuedPieceBytes before reading more REQUESTs
+    private void AwaitPieceQueue() throws InterruptedException {
+        write_lock.lock();
+        try {
+            while (queued_piece_bytes > max_queued_piece_bytes && !closed.get())
+                drained.await();
+        } finally {
+            write_lock.unlock();
+        }
+    }
+
+    // Buffer to encode the next message into, called under write_lock: the open buffer while it has
+    // room, else a new one from the pool queued behind the others. Messages sent while the writer
+    // is busy are coalesced into one buffer. Returns null if the connection is closed or ending.
+    private ByteBuffer Reserve(MessageType message_type, int frame_size) {
+        if (closed.get() || ending)
+            return null;
+        host_peer.message_stats.CountSent(message_type);
+        if (open_buffer == null || open_buffer.remaining() < frame_size) {
+            CloseOpenBuffer();
+            open_buffer = message_pool.Acquire();
+            control_queue.add(open_buffer);
+        }
+        queued.signal();
+        return open_buffer;
+    }
+
+    // No more messages go into the open buffer, switch it to reading. Called under write_lock.
+    private void CloseOpenBuffer() {
+        if (open_buffer != null) {
+            open_buffer.flip();
+            open_buffer = null;
+        }
+    }
+
+    public void Send(byte[] msg) {
+        write_lock.lock();
+        try {
+            if (closed.get() || ending)
+                return;
+            CloseOpenBuffer();
+            control_queue.add(ByteBuffer.wrap(msg));
+            queued.signal();
+        } finally {
+            write_lock.unlock();
+        }
+    }
+
+    public void Send(MessageType message_type) {
+        write_lock.lock();
+        try {
+            ByteBuffer out = Reserve(message_type, Message.FrameSize(0));
+            if (out != null)
+                Message.Encode(out, message_type);
+        } finally {
+            write_lock.unlock();
+        }
+    }
+
+    public void Send(MessageType message_type, int value) {
+        write_lock.lock();
+        try {
+            ByteBuffer out = Reserve(message_type, Message.FrameSize(4));
+            if (out != null)
+                Message.Encode(out, message_type, value);
+        } finally {
+            write_lock.unlock();
+        }
+    }
+
+    public void Send(MessageType message_type, Block block) {
+        write_lock.lock();
+        try {
+            ByteBuffer out = Reserve(message_type, Message.FrameSize(12));
+            if (out != null)
+                Message.Encode(out, message_type, block);
+        } finally {
+            write_lock.unlock();
+        }
+    }
+
+    // A payload too big for a pooled buffer (BITFIELD) gets a buffer of its own
+    public void Send(MessageType message_type, byte[] payload) {
+        if (Message.FrameSize(payload.length) > SelectorConnection.MESSAGE_BUFFER_SIZE) {
+            host_peer.message_stats.CountSent(message_type);
+            Send(new Message(message_type, payload).BuildMessageByteArray());
+            return;
+        }
+        write_lock.lock();
+        try {
+            ByteBuffer out = Reserve(message_type, Message.FrameSize(payload.length));
+            if (out != null)
+                Message.Encode(out, message_type, payload);
+        } finally {
+            write_lock.unlock();
+        }
+    }
+
+    public void SendPiece(Block block, FileChannel file_channel, long position, ByteBuffer data) {
+        write_lock.lock();
+        try {
+            if (closed.get() || ending)
+                return;
+            host_peer.message_stats.CountSent(MessageType.PIECE);
+            ByteBuffer header = header_pool.Acquire();
+            Message.EncodePieceHeader(header, block);
+            header.flip();
+            piece_queue.add(new PieceTransfer(block, header, file_channel, position, data));
+            queued_piece_bytes += block.length;
+            queued.signal();
+        } finally {
+            write_lock.unlock();
+        }
+    }
+
+    // The PIECE taken by the writer is no longer in piece_queue, only the ones not started are
+    public void CancelPiece(int index, int offset) {
+        DropPieces(transfer -> transfer.block.index == index && transfer.block.offset == offset);
+    }
+
+    public void DropQueuedPieces() {
+        DropPieces(transfer -> true);
+    }
+
+    public long GetQueuedPieceBytes() {
+        return queued_piece_bytes;
+    }
+
+    private void DropPieces(Predicate<PieceTransfer> filter) {
+        write_lock.lock();
+        try {
+            piece_queue.removeIf(transfer -> {
+                if (!filter.test(transfer))
+                    return false;
+                header_pool.Release(transfer.header);
+                queued_piece_bytes -= transfer.block.length;
+                return true;
+            });
+            drained.signalAll();
+        } finally {
+            write_lock.unlock();
+        }
+    }
+
+    // The writer shuts down the output once it has written everything queued, and the reader
+    // closes the connection when the neighbor closes its side
+    public void CloseGracefully() {
+        Execute(() -> {
+            if (message_handler != null)
+                message_handler.RelayHaveMessages();
+            write_lock.lock();
+            try {
+                ending = true;
+                queued.signal();
+            } finally {
+                write_lock.unlock();
+            }
+        });
+    }
+
+    public void Close() {
+        if (!closed.compareAndSet(false, true))
+            return;
+        try {
+            // Wakes up a reader blocked in read() and a writer blocked in write()
+            channel.close();
+        } catch (IOException ioException) {
+            ioException.printStackTrace();
+        }
+        write_lock.lock();
+        try {
+            control_queue.clear();
+            piece_queue.clear();
+            open_buffer = null;
+            ending = true;
+            // Wakes up a writer waiting for messages and a reader waiting for the PIECEs to drain
+            queued.signal();
+            drained.signalAll();
+        } finally {
+            write_lock.unlock();
+        }
+        // Requests sent on this connection will never be answered
+        Execute(() -> {
+            if (message_handler != null)
+                message_handler.HandleDisconnect();
+        });
+    }
+}
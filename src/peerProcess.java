@@ -1,181 +1,538 @@
-import java.io.*;
-import java.util.*;
-import java.nio.file.Files;
-
-import static java.lang.System.exit;
-
-public class peerProcess {
-
-    public Integer peer_id; // Current Host's peer id
-    public PeerDetails host_details; // To store current peer details as PeerDetails object
-    public HashMap<String, String> config_params; // Stores the Common.cfg parameters
-    public HashMap<Integer, PeerDetails> neighbors_list; // All Neighbors stored as hashmap
-    public ArrayList<Integer> previous_neighbors_ids; // List of Neighbors listed before current peer
-    public HashMap<Integer, Boolean> neighbors_interested_in_host;
-    public HashMap<Integer, Boolean> choked_by_neighbors;
-    public HashMap<Integer, Boolean> unchoked_by_host;
-    public Integer opt_neighbor;
-    public HashMap<Integer, Integer> neighbor_downloads;
-    public Set<Integer> requested_indices;
-    private static PeerClient peer_client;
-    private static PeerServer peer_server;
-    private static SelectNeighbors select_neighbors;
-    private static SelectOptNeighbor select_opt_neighbors;
-    public Logger logger;
-    public Integer no_of_pieces;
-    public FileHandler file_handler;
-    public int completed_peer_files;
-    public int completed_threads;
-
-    public peerProcess(int id) {
-        peer_id                      = id;
-        completed_threads            = 0;
-        config_params                = new HashMap<>();
-        neighbors_list               = new HashMap<>();
-        previous_neighbors_ids       = new ArrayList<>();
-        neighbors_interested_in_host = new HashMap<>();
-        choked_by_neighbors          = new HashMap<>();
-        unchoked_by_host             = new HashMap<>();
-        requested_indices            = new HashSet<>();
-        neighbor_downloads           = new HashMap<>();
-        logger                       = new Logger(peer_id.toString());
-        completed_peer_files         = 0;
-    }
-
-    // Method to read common.cfg and store values in a hashmap
-    public void ReadCommonCfg() {
-        try {
-            String line;
-            String[] line_split;
-            BufferedReader file = new BufferedReader(new FileReader("Common.cfg"));
-            while((line = file.readLine()) != null) {
-                line_split = line.split(" ");
-                // Store as a hashmap with key as parameter name and value as parameter's value
-                config_params.put(line_split[0], line_split[1]);
-            }
-            file.close();
-        }
-        catch (Exception ex) {
-            System.out.println(ex.toString());
-        }
-    }
-
-    // Method to read PeerInfo.cfg and store the peer information as PeerDetails object in a hashmap
-    public void ReadPeerInfoCfg() {
-        try {
-            String line;
-            int p_id;
-            boolean found_peer = false;
-
-            BufferedReader file = new BufferedReader(new FileReader("PeerInfo.cfg"));
-
-            while((line = file.readLine()) != null) {
-                // Peer information stored as PeerDetails object
-                PeerDetails peer_details = new PeerDetails(line);
-                p_id = Integer.parseInt(line.split(" ")[0]);
-                if (!found_peer && p_id == peer_id) {
-                    found_peer = true;
-                    host_details  = peer_details;
-                } else {
-                    // Append previous_neighbors_ids only until we find current peer
-                    if (!found_peer)
-                        previous_neighbors_ids.add(p_id);
-                    // All the neighbors information is stored in a hashmap
-                    neighbors_list.put(p_id, peer_details);
-                }
-                choked_by_neighbors.put(p_id, true);
-                unchoked_by_host.put(p_id, false);
-            }
-            file.close();
-
-            // Create host directory to store 'theFile'
-            // String curr_dir = System.getProperty("user.dir");
-            // String full_dir_path = curr_dir + "/" + "peer_" + peer_id;
-            // File dir = new File(full_dir_path);
-            // dir.mkdir();
-
-            // Copy 'thefile' to host dir if host has file
-            // if(host_details.has_file) {
-            //     File source = new File(curr_dir + "/thefile");
-            //     File dest = new File(curr_dir + "/peer_" + peer_id + "/thefile");
-            //     if(!dest.exists()) {
-            //         try {
-            //             Files.copy(source.toPath(), dest.toPath());
-            //         } catch (IOException e) {
-            //             e.printStackTrace();
-            //         } 
-            //     }
-            // }
-        }
-        catch (Exception ex) {
-            System.out.println(ex.toString());
-        }
-    }
-
-    // Method to Set the bit fields based on the file size and piece size
-    public void SetBitField() {
-        int file_size  = Integer.parseInt(config_params.get("FileSize"));
-        int piece_size = Integer.parseInt(config_params.get("PieceSize"));
-        no_of_pieces   = (int) Math.ceil((double)file_size/piece_size);
-        BitSet bitfield_piece_index = new BitSet(no_of_pieces + 1);
-
-        // Sets all bit values to 1 if has_file is true else 0
-        for(int i = 0; i < no_of_pieces; i++) {
-            bitfield_piece_index.set(i, host_details.has_file);
-        }
-        bitfield_piece_index.set(no_of_pieces);
-        host_details.bitfield_piece_index = bitfield_piece_index;
-    }
-
-    // file_handler handles converting file to pieces, copying and fetching pieces, constructing file from pieces
-    public void HandleFile() throws IOException {
-        file_handler = new FileHandler(this);
-        if (host_details.has_file)
-            file_handler.ConvertFileToPieces();
-    }
-
-    // Only for debugging, delete before submission
-    public void CopyHandleFile() throws IOException {
-        peerProcess copy_peer = new peerProcess(1002);
-        copy_peer.host_details = new PeerDetails("1002 localhost 6002 0");
-        copy_peer.no_of_pieces = this.no_of_pieces;
-        copy_peer.config_params = this.config_params;
-        copy_peer.SetBitField();
-        FileHandler copy_file_handler = new FileHandler(copy_peer);
-
-        for (int i = 0; i < no_of_pieces; i++) {
-            copy_file_handler.SetPiece(i, file_handler.GetPiece(i));
-        }
-        copy_file_handler.BuildFile();
-
-    }
-
-    public static void main(String args[]) throws IOException {
-        if (args.length < 1) {
-            System.out.println("No arguments Passed. Exiting the Program");
-            exit(1);
-        }
-        peerProcess peer = new peerProcess(Integer.parseInt(args[0]));
-        // Read Common.cfg file
-        peer.ReadCommonCfg();
-
-        // Read PeerInfo.cfg file
-        peer.ReadPeerInfoCfg();
-
-        // Set bitfield and file pieces
-        peer.SetBitField();
-        peer.HandleFile();
-        
-        // Creating PeerClient, PeerServer objects and starting selection of 
-        // 'k' preferred neighbors and one optimistically unchoked neighbor
-        peer_client = new PeerClient(peer);
-        peer_server = new PeerServer(peer);
-        select_neighbors = new SelectNeighbors(peer);
-        select_opt_neighbors = new SelectOptNeighbor(peer);
-        peer_client.start();
-        peer_server.start();
-        select_neighbors.start();
-        select_opt_neighbors.start();
-
-    }
-}
+import java.io.*;
+import java.util.*;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.lang.System.exit;
+
+// A peerProcess is one torrent: the file shared with one swarm of neighbors. The torrents of a peer
+// share the listening port, the connection threads and the log through their Session.
+public class peerProcess {
+
+    public Integer peer_id; // Current Host's peer id
+    public Session session; // What this torrent shares with the other torrents of the peer
+    public int content_id; // Identifies the torrent in the handshake
+    public PeerDetails host_details; // To store current peer details as PeerDetails object
+    public HashMap<String, String> config_params; // Stores the Common.cfg parameters, and those of the torrent file
+    public HashMap<Integer, PeerDetails> neighbors_list; // All Neighbors stored as hashmap
+    public ArrayList<Integer> previous_neighbors_ids; // List of Neighbors listed before current peer
+    // State shared by the event loops and the choker threads, keyed by peer id
+    public ConcurrentIntMap neighbors_interested_in_host;
+    public ConcurrentIntMap choked_by_neighbors;
+    public ConcurrentIntMap unchoked_by_host;
+    public volatile int opt_neighbor;
+    public HaveLog have_log; // Pieces received by the host, relayed as HAVE by every connection
+    public PiecePicker piece_picker; // Chooses the next piece to request and tracks pieces in flight
+    private PeerClient peer_client;
+    private SelectNeighbors select_neighbors;
+    private SelectOptNeighbor select_opt_neighbors;
+    public Logger logger;
+    public Integer no_of_pieces;
+    public FileHandler file_handler;
+    public PieceVerifier piece_verifier; // Verifies received pieces against the manifest, null if there is no manifest
+    public CompletionTracker completion_tracker; // Neighbors known to have the complete file
+    private final AtomicBoolean seeding_logged;
+    public MessageStats message_stats; // Messages sent to and received from all neighbors, by type
+    public final Metrics.Histogram request_latency = new Metrics.Histogram(); // From a REQUEST to its PIECE
+    public volatile long start_time; // System.nanoTime() when the peer started
+    public volatile long completion_time; // System.nanoTime() when the last missing piece was received, 0 until then
+    private final AtomicBoolean running;
+    private final CountDownLatch terminated; // Released once Shutdown() has stopped everything
+
+    // The first torrent of a new session, it reads Common.cfg into the session's config
+    public peerProcess(int id) {
+        this(new Session(id), null);
+    }
+
+    // Another torrent of the session, its config starts from the session's Common.cfg
+    public peerProcess(Session session) {
+        this(session, new HashMap<>(session.config_params));
+    }
+
+    private peerProcess(Session session, HashMap<String, String> torrent_config_params) {
+        this.session                 = session;
+        peer_id                      = session.peer_id;
+        config_params                = torrent_config_params != null ? torrent_config_params : session.config_params;
+        neighbors_list               = new HashMap<>();
+        previous_neighbors_ids       = new ArrayList<>();
+        logger                       = session.logger;
+        seeding_logged               = new AtomicBoolean(false);
+        opt_neighbor                 = 0;
+        message_stats                = new MessageStats();
+        running                      = new AtomicBoolean(true);
+        terminated                   = new CountDownLatch(1);
+        session.Add(this);
+    }
+
+    // Method to read common.cfg and store values in a hashmap
+    public void ReadCommonCfg() {
+        ReadConfig("Common.cfg");
+    }
+
+    // Read a config file in the format of Common.cfg, e.g. a torrent file listed in Torrents: its
+    // values replace those of Common.cfg for this torrent
+    public void ReadConfig(String file_name) {
+        try {
+            String line;
+            String[] line_split;
+            BufferedReader file = new BufferedReader(new FileReader(file_name));
+            while((line = file.readLine()) != null) {
+                line_split = line.split(" ");
+                // Store as a hashmap with key as parameter name and value as parameter's value
+                config_params.put(line_split[0], line_split[1]);
+            }
+            file.close();
+        }
+        catch (Exception ex) {
+            System.out.println(ex.toString());
+        }
+    }
+
+    // Method to read PeerInfo.cfg and store the peer information as PeerDetails object in a hashmap.
+    // A torrent file can name a file of its own with PeerInfo, e.g. to list other peers having the file.
+    public void ReadPeerInfoCfg() {
+        try {
+            String line;
+            ArrayList<String> lines = new ArrayList<>();
+            BufferedReader file = new BufferedReader(new FileReader(config_params.getOrDefault("PeerInfo", "PeerInfo.cfg")));
+            while((line = file.readLine()) != null)
+                lines.add(line);
+            file.close();
+            SetPeerInfo(lines);
+        }
+        catch (Exception ex) {
+            System.out.println(ex.toString());
+        }
+    }
+
+    // Store the peers given as PeerInfo.cfg lines, in the order of the file
+    public void SetPeerInfo(List<String> lines) {
+        int p_id;
+        boolean found_peer = false;
+        ArrayList<Integer> all_peer_ids = new ArrayList<>();
+        for (String line : lines) {
+            // Peer information stored as PeerDetails object
+            PeerDetails peer_details = new PeerDetails(line);
+            p_id = Integer.parseInt(line.split(" ")[0]);
+            if (!found_peer && p_id == peer_id) {
+                found_peer = true;
+                host_details  = peer_details;
+            } else {
+                // Append previous_neighbors_ids only until we find current peer
+                if (!found_peer)
+                    previous_neighbors_ids.add(p_id);
+                // All the neighbors information is stored in a hashmap
+                neighbors_list.put(p_id, peer_details);
+            }
+            all_peer_ids.add(p_id);
+        }
+
+        // Every peer is known now, create the shared per-peer state
+        neighbors_interested_in_host = new ConcurrentIntMap(all_peer_ids);
+        choked_by_neighbors          = new ConcurrentIntMap(all_peer_ids);
+        unchoked_by_host             = new ConcurrentIntMap(all_peer_ids);
+        for (int id : all_peer_ids)
+            choked_by_neighbors.Set(id, true);
+        completion_tracker = new CompletionTracker(neighbors_list.keySet());
+
+        // Create host directory to store 'theFile'
+        // String curr_dir = System.getProperty("user.dir");
+        // String full_dir_path = curr_dir + "/" + "peer_" + peer_id;
+        // File dir = new File(full_dir_path);
+        // dir.mkdir();
+
+        // Copy 'thefile' to host dir if host has file
+        // if(host_details.has_file) {
+        //     File source = new File(curr_dir + "/thefile");
+        //     File dest = new File(curr_dir + "/peer_" + peer_id + "/thefile");
+        //     if(!dest.exists()) {
+        //         try {
+        //             Files.copy(source.toPath(), dest.toPath());
+        //         } catch (IOException e) {
+        //             e.printStackTrace();
+        //         } 
+        //     }
+        // }
+    }
+
+    // Method to Set the bit fields based on the file size and piece size
+    public void SetBitField() {
+        long file_size = Long.parseLong(config_params.get("FileSize"));
+        int piece_size = Integer.parseInt(config_params.get("PieceSize"));
+        no_of_pieces   = (int) Math.ceil((double)file_size/piece_size);
+        content_id     = HandShake.ContentId(config_params);
+        PieceBitfield bitfield_piece_index = new PieceBitfield(no_of_pieces);
+
+        have_log = new HaveLog(no_of_pieces);
+
+        // Sets all bit values to 1 if has_file is true else 0
+        for(int i = 0; i < no_of_pieces && host_details.has_file; i++) {
+            bitfield_piece_index.Set(i);
+            have_log.Append(i);
+        }
+        host_details.bitfield_piece_index = bitfield_piece_index;
+    }
+
+    // file_handler opens or preallocates the file and reads and writes pieces at their offsets
+    public void HandleFile() throws IOException {
+        file_handler = new FileHandler(this);
+        file_handler.OpenFile();
+        LoadManifest();
+        ResumeDownload();
+        // The picker starts from the pieces the host has, including the resumed ones
+        piece_picker = PiecePicker.Create(this);
+    }
+
+    private void LoadManifest() throws IOException {
+        // Load the piece hashes, the host generates them if it has the file and there are none yet.
+        // A peer without the file waits a while for a peer with it to generate them.
+        String algorithm = config_params.getOrDefault("PieceHashAlgorithm", "SHA-1");
+        long wait_until = System.currentTimeMillis() + 1000L * Integer.parseInt(config_params.getOrDefault("ManifestWaitSeconds", "10"));
+        PieceManifest manifest = PieceManifest.Load(this, algorithm);
+        if (manifest == null && host_details.has_file)
+            manifest = PieceManifest.Generate(this, algorithm);
+        while (manifest == null && System.currentTimeMillis() < wait_until) {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                break;
+            }
+            manifest = PieceManifest.Load(this, algorithm);
+        }
+        if (manifest == null) {
+            logger.log(Logger.Level.WARN, "found no piece manifest " + PieceManifest.GetPath(this) + ", received pieces are not verified");
+            return;
+        }
+        piece_verifier = new PieceVerifier(manifest, session.GetStorageWorkers());
+    }
+
+    // Take over the pieces completed before a restart from the persisted bitfield. With a manifest
+    // the pieces are verified first, as the process may have stopped while a piece was written.
+    private void ResumeDownload() throws IOException {
+        if (host_details.has_file)
+            return;
+        PieceBitfield saved_bitfield = file_handler.LoadBitField();
+        if (saved_bitfield == null)
+            return;
+        int no_of_failed = 0;
+        for (int i = saved_bitfield.NextSetBit(0); i >= 0; i = saved_bitfield.NextSetBit(i + 1)) {
+            if (piece_verifier != null && !piece_verifier.Verify(i, file_handler)) {
+                no_of_failed++;
+                continue;
+            }
+            host_details.bitfield_piece_index.Set(i);
+            have_log.Append(i);
+        }
+        // Drop the pieces that failed verification from the saved bitfield
+        file_handler.SaveBitField();
+        if (have_log.Size() == no_of_pieces)
+            host_details.has_file = true;
+        if (no_of_failed > 0)
+            logger.log(Logger.Level.WARN, "dropped " + no_of_failed + " saved pieces which failed verification, they are downloaded again");
+        logger.log("resumes with " + have_log.Size() + " of " + no_of_pieces + " pieces");
+    }
+
+    // A neighbor that sent MaxCorruptPieces corrupt pieces is not served any more
+    public boolean IsBanned(PeerDetails neighbor) {
+        return neighbor.corrupt_pieces.get() >= Integer.parseInt(config_params.getOrDefault("MaxCorruptPieces", "3"));
+    }
+
+    // Close the torrent's connections once what is queued on them is written, waiting at most
+    // timeout_ms. The event loops or connection threads are the session's and keep serving the
+    // connections of the other torrents.
+    private void StopConnections(long timeout_ms) throws InterruptedException {
+        for (PeerDetails neighbor : neighbors_list.values()) {
+            PeerConnection connection = neighbor.connection;
+            if (connection != null)
+                connection.Execute(connection::CloseGracefully);
+        }
+        long deadline = System.currentTimeMillis() + timeout_ms;
+        for (PeerDetails neighbor : neighbors_list.values()) {
+            PeerConnection connection = neighbor.connection;
+            if (connection == null)
+                continue;
+            while (connection.IsOpen() && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            // Connections still writing are cut
+            connection.Execute(connection::Close);
+        }
+    }
+
+    // Nanoseconds until a PIECE may be sent to the neighbor under MaxUploadRate and
+    // MaxUploadRatePerPeer, 0 if it may be sent now
+    public long UploadDelay(PeerDetails neighbor) {
+        return Math.max(session.upload_limit.Delay(), neighbor.upload_limit.Delay());
+    }
+
+    public void TakeUpload(PeerDetails neighbor, int bytes) {
+        session.upload_limit.Take(bytes);
+        neighbor.upload_limit.Take(bytes);
+    }
+
+    // Nanoseconds until a block may be requested from the neighbor under MaxDownloadRate and
+    // MaxDownloadRatePerPeer, 0 if it may be requested now
+    public long DownloadDelay(PeerDetails neighbor) {
+        return Math.max(session.download_limit.Delay(), neighbor.download_limit.Delay());
+    }
+
+    public void TakeDownload(PeerDetails neighbor, int bytes) {
+        session.download_limit.Take(bytes);
+        neighbor.download_limit.Take(bytes);
+    }
+
+    // Limit the uploads to every neighbor to this many bytes per second, 0 for no limit
+    public void SetPeerUploadRate(long rate) {
+        for (PeerDetails neighbor : neighbors_list.values())
+            neighbor.upload_limit.SetRate(rate);
+    }
+
+    // Limit the downloads from every neighbor to this many bytes per second, 0 for no limit
+    public void SetPeerDownloadRate(long rate) {
+        for (PeerDetails neighbor : neighbors_list.values())
+            neighbor.download_limit.SetRate(rate);
+    }
+
+    // Keep a piece just received and verified in the session's piece cache, if there is one
+    public void CachePiece(int index, byte[] piece) {
+        if (session.piece_cache != null)
+            session.piece_cache.Put(content_id, index, piece);
+    }
+
+    // Fold the bytes transferred during the last interval into every neighbor's rates
+    public void UpdateTransferRates(double seconds) {
+        for (PeerDetails neighbor : neighbors_list.values()) {
+            neighbor.download_rate.Tick(seconds);
+            neighbor.upload_rate.Tick(seconds);
+        }
+    }
+
+    // Notify every connected neighbor that the preferred or optimistic neighbors changed
+    public void BroadcastChokeUnchoke() {
+        for (PeerDetails neighbor : neighbors_list.values()) {
+            PeerConnection connection = neighbor.connection;
+            if (connection != null)
+                connection.Execute(() -> connection.message_handler.UpdateChokeUnchoke());
+        }
+    }
+
+    // Let every connected neighbor top up its request pipeline, used when requests are released
+    public void BroadcastFillRequestPipeline() {
+        for (PeerDetails neighbor : neighbors_list.values()) {
+            PeerConnection connection = neighbor.connection;
+            if (connection != null)
+                connection.Execute(() -> connection.message_handler.FillRequestPipeline());
+        }
+    }
+
+    // Cancel the endgame requests for a block on every neighbor except the one which delivered it
+    public void BroadcastCancel(Block block, int from_peer_id) {
+        for (PeerDetails neighbor : neighbors_list.values()) {
+            PeerConnection connection = neighbor.connection;
+            if (connection != null && neighbor.peer_id != from_peer_id)
+                connection.Execute(() -> connection.message_handler.CancelRequest(block));
+        }
+    }
+
+    // Notify every connected neighbor that a new piece was received so it relays the HAVE messages
+    public void BroadcastHave() {
+        for (PeerDetails neighbor : neighbors_list.values()) {
+            PeerConnection connection = neighbor.connection;
+            if (connection != null)
+                connection.Execute(() -> connection.message_handler.RelayHaveMessages());
+        }
+    }
+
+    // A neighbor's BITFIELD or HAVE messages show that it has every piece
+    public void NeighborCompleted(PeerDetails neighbor) {
+        if (completion_tracker.MarkComplete(neighbor.peer_id))
+            CheckSwarmCompletion();
+    }
+
+    // Called when the host or a neighbor completes the file. Once every peer has the file the host
+    // shuts down, unless KeepSeeding in Common.cfg is true: it then serves the file until stopped.
+    public void CheckSwarmCompletion() {
+        if (!host_details.has_file || !completion_tracker.AllNeighborsComplete())
+            return;
+        if (!Boolean.parseBoolean(config_params.getOrDefault("KeepSeeding", "false")))
+            Shutdown();
+        else if (seeding_logged.compareAndSet(false, true))
+            logger.log("knows that all peers have the complete file and keeps seeding.");
+    }
+
+    // Start serving the neighbors: the session's event loops and server if this is its first torrent,
+    // the connections to the peers listed before the host and the selection of 'k' preferred
+    // neighbors and one optimistically unchoked neighbor
+    public void Start() throws IOException {
+        SetPeerUploadRate(Long.parseLong(config_params.getOrDefault("MaxUploadRatePerPeer", "0")));
+        SetPeerDownloadRate(Long.parseLong(config_params.getOrDefault("MaxDownloadRatePerPeer", "0")));
+        session.Start(this);
+        RegisterMetrics();
+        peer_client          = new PeerClient(this);
+        select_neighbors     = new SelectNeighbors(this);
+        select_opt_neighbors = new SelectOptNeighbor(this);
+        start_time           = System.nanoTime();
+        peer_client.start();
+        select_neighbors.start();
+        select_opt_neighbors.start();
+        // Nothing to wait for if the host has the file and there is no other peer
+        CheckSwarmCompletion();
+    }
+
+    // Register the metrics of the torrent and its neighbors with the session's, labelled with the
+    // content id. They are dropped when the torrent stops.
+    private void RegisterMetrics() {
+        Metrics metrics = session.metrics;
+        String torrent = Metrics.Labels("torrent", content_id);
+        metrics.AddGauge("p2p_pieces", "Pieces the host has", torrent, () -> have_log.Size());
+        metrics.AddGauge("p2p_pieces_in_progress", "Pieces started and not received yet", torrent, piece_picker::GetStartedPieces);
+        metrics.AddHistogram("p2p_request_latency_seconds", "Time from a REQUEST to its PIECE", torrent, request_latency);
+        metrics.AddHistogram("p2p_storage_read_seconds", "Time to read a piece from the file", torrent, file_handler.read_latency);
+        metrics.AddHistogram("p2p_storage_write_seconds", "Time of a gathering write of received blocks", torrent, file_handler.write_latency);
+        if (piece_verifier != null)
+            metrics.AddHistogram("p2p_piece_hash_seconds", "Time to hash a piece and compare it with the manifest", torrent, piece_verifier.hash_time);
+        for (MessageType message_type : MessageType.values()) {
+            if (message_type == MessageType.UNKNOWN)
+                continue;
+            String labels = Metrics.Labels("torrent", content_id, "type", message_type);
+            metrics.AddCounter("p2p_messages_sent_total", "Messages sent to all neighbors", labels, () -> message_stats.GetSent(message_type));
+            metrics.AddCounter("p2p_messages_received_total", "Messages received from all neighbors", labels, () -> message_stats.GetReceived(message_type));
+        }
+        // A CHOKE or UNCHOKE is only sent when the state of the neighbor changes
+        for (String direction : new String[] { "sent", "received" }) {
+            for (MessageType message_type : new MessageType[] { MessageType.CHOKE, MessageType.UNCHOKE }) {
+                String labels = Metrics.Labels("torrent", content_id, "direction", direction, "to", message_type == MessageType.CHOKE ? "choked" : "unchoked");
+                metrics.AddCounter("p2p_choke_transitions_total", "Neighbors choked or unchoked, by the host (sent) or by the neighbors (received)", labels,
+                        direction.equals("sent") ? () -> message_stats.GetSent(message_type) : () -> message_stats.GetReceived(message_type));
+            }
+        }
+        for (PeerDetails neighbor : neighbors_list.values()) {
+            String labels = Metrics.Labels("torrent", content_id, "peer", neighbor.peer_id);
+            metrics.AddCounter("p2p_block_bytes_received_total", "Block bytes received from the neighbor", labels, neighbor.bytes_received);
+            metrics.AddCounter("p2p_block_bytes_sent_total", "Block bytes sent to the neighbor", labels, neighbor.bytes_sent);
+            metrics.AddCounter("p2p_piece_messages_received_total", "PIECE messages received from the neighbor", labels, neighbor.pieces_received);
+            metrics.AddCounter("p2p_piece_messages_sent_total", "PIECE messages sent to the neighbor", labels, neighbor.pieces_sent);
+            metrics.AddGauge("p2p_send_queue_bytes", "Block bytes of the PIECEs queued for the neighbor", labels, () -> {
+                PeerConnection connection = neighbor.connection;
+                return connection != null ? connection.GetQueuedPieceBytes() : 0;
+            });
+        }
+    }
+
+    public boolean IsRunning() {
+        return running.get();
+    }
+
+    // Stop the peer once every peer has the file, or when it is stopped from outside. Can be called
+    // from any thread including the event loops, so the peer is stopped by a thread of its own:
+    //   1. no new connections and no more choking rounds
+    //   2. the received blocks are written and the pieces being verified are committed
+    //   3. every connection relays its pending HAVEs and is closed once its send queue is written,
+    //      or after ShutdownTimeoutSeconds
+    //   4. the file and the saved bitfield are forced to disk
+    //   5. the session stops with its last torrent, the buffered log lines are written
+    public void Shutdown() {
+        if (!running.compareAndSet(true, false))
+            return;
+        new Thread(this::Stop, "Shutdown-" + peer_id).start();
+    }
+
+    private void Stop() {
+        long timeout_ms = 1000L * Integer.parseInt(config_params.getOrDefault("ShutdownTimeoutSeconds", "5"));
+        try {
+            session.Remove(this);
+            Thread[] threads = { peer_client, select_neighbors, select_opt_neighbors };
+            for (Thread thread : threads) {
+                if (thread != null)
+                    thread.interrupt();
+            }
+            for (Thread thread : threads) {
+                if (thread != null)
+                    thread.join();
+            }
+            // Write the blocks received so far, the completed pieces go to the verifier
+            if (file_handler != null && session.disk_writer != null)
+                session.disk_writer.Flush(file_handler, timeout_ms);
+            if (piece_verifier != null)
+                piece_verifier.Shutdown();
+            StopConnections(timeout_ms);
+            if (file_handler != null && session.disk_writer != null)
+                session.disk_writer.Flush(file_handler, timeout_ms);
+            if (file_handler != null)
+                file_handler.Close();
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+        }
+        try {
+            session.Stop(this, timeout_ms);
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+        }
+        terminated.countDown();
+    }
+
+    // Wait until the peer has shut down
+    public void AwaitTermination() throws InterruptedException {
+        terminated.await();
+    }
+
+    public boolean AwaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    public static void main(String args[]) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.out.println("No arguments Passed. Exiting the Program");
+            exit(1);
+        }
+        peerProcess peer = new peerProcess(Integer.parseInt(args[0]));
+        // Read Common.cfg file
+        peer.ReadCommonCfg();
+        peer.logger.SetLevel(Logger.Level.valueOf(peer.config_params.getOrDefault("LogLevel", "INFO")));
+        peer.logger.CaptureStandardError();
+
+        // The file of Common.cfg is the first torrent, Torrents lists the config files of more
+        // torrents served by the same process, e.g. "Torrents movie.cfg,music.cfg"
+        ArrayList<peerProcess> torrents = new ArrayList<>();
+        torrents.add(peer);
+        for (String torrent_file : peer.config_params.getOrDefault("Torrents", "").split(",")) {
+            if (torrent_file.isEmpty())
+                continue;
+            peerProcess torrent = new peerProcess(peer.session);
+            torrent.ReadConfig(torrent_file);
+            torrents.add(torrent);
+        }
+
+        for (peerProcess torrent : torrents) {
+            // Read PeerInfo.cfg file
+            torrent.ReadPeerInfoCfg();
+
+            // Set bitfield and file pieces
+            torrent.SetBitField();
+            torrent.HandleFile();
+        }
+
+        // Stop gracefully on Ctrl-C or kill too
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (peerProcess torrent : torrents)
+                torrent.Shutdown();
+            try {
+                for (peerProcess torrent : torrents)
+                    torrent.AwaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // The session closes the log once the last torrent stopped, unless that timed out. The
+            // log is closed last either way, after every line of the shutdown is logged.
+            peer.session.logger.Close();
+        }));
+        for (peerProcess torrent : torrents)
+            torrent.Start();
+
+        // Every torrent shuts itself down once every peer of its swarm has the file
+        for (peerProcess torrent : torrents)
+            torrent.AwaitTermination();
+        exit(0);
+    }
+}